@@ -0,0 +1,424 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.esjp.promotions;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.StringUtils;
+import org.efaps.admin.program.esjp.EFapsApplication;
+import org.efaps.admin.program.esjp.EFapsUUID;
+import org.efaps.admin.user.Company;
+import org.efaps.db.Context;
+import org.efaps.db.Instance;
+import org.efaps.eql.EQL;
+import org.efaps.esjp.ci.CIPromo;
+import org.efaps.esjp.ci.CISales;
+import org.efaps.esjp.common.serialization.SerializationUtil;
+import org.efaps.promotionengine.dto.PromotionInfoDto;
+import org.efaps.promotionengine.promotion.Promotion;
+import org.efaps.util.EFapsException;
+import org.efaps.util.cache.InfinispanCache;
+import org.infinispan.Cache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+
+/**
+ * Durable queue for the promotion info of documents. Registering only writes
+ * one row, the relations are created later by the
+ * {@link org.efaps.esjp.promotions.jobs.PromotionInfoQueueJob}. Every row is
+ * claimed through a marker in the cache shared by the nodes and applied in a
+ * transaction of its own, so one failing row does not roll back the others.
+ * Applying a row replaces the relations the document already has, so a row
+ * applied twice leaves the same relations. Rows that fail are kept with their
+ * error and retried up to {@link #MAX_ATTEMPTS} times. The promotions are
+ * stored with the row when it is queued and registered as they were then.
+ */
+@EFapsUUID("8b0eebd2-c445-4c82-aabf-53c34580a8a5")
+@EFapsApplication("eFapsApp-Promotions")
+public class PromotionInfoQueue
+{
+
+    private static final Logger LOG = LoggerFactory.getLogger(PromotionInfoQueue.class);
+
+    private static final String CACHENAME = PromotionInfoQueue.class.getName() + ".Cache";
+
+    /** Rows that failed this often are left for manual inspection. */
+    public static final int MAX_ATTEMPTS = 5;
+
+    /** Minutes a claim is kept, releases the rows of a node that died while applying. */
+    private static final long CLAIM_TIMEOUT = 10;
+
+    /** EQL has no count, the backlog is counted up to this limit. */
+    private static final int BACKLOG_LIMIT = 10_000;
+
+    /**
+     * The promotions are stored as they are at the time of the checkout, so
+     * that a promotion changed before the row is applied does not change the
+     * registered info.
+     *
+     * @param documentOid oid of the document
+     * @param dto promotion info
+     * @throws EFapsException on error
+     */
+    public void enqueue(final String documentOid,
+                        final PromotionInfoDto dto)
+        throws EFapsException
+    {
+        try {
+            final var objectMapper = SerializationUtil.getObjectMapper();
+            final var service = new PromotionService();
+            final List<Promotion> promotions = new ArrayList<>();
+            for (final var promotionOid : dto.getPromotionOids()) {
+                final var promotion = service.getPromotion(promotionOid);
+                if (promotion != null) {
+                    promotions.add(promotion);
+                }
+            }
+            EQL.builder().insert(CIPromo.PromotionInfoQueue)
+                            .set(CIPromo.PromotionInfoQueue.DocumentOID, documentOid)
+                            .set(CIPromo.PromotionInfoQueue.PromoInfo, objectMapper.writeValueAsString(dto))
+                            .set(CIPromo.PromotionInfoQueue.Promotions, objectMapper.writeValueAsString(promotions))
+                            .set(CIPromo.PromotionInfoQueue.Attempts, 0)
+                            .execute();
+        } catch (final JsonProcessingException e) {
+            throw new EFapsException(PromotionInfoQueue.class, "enqueue", e);
+        }
+    }
+
+    /**
+     * Applies the oldest pending rows of the current company. The rows are
+     * applied in a thread with a context of its own per row, the context of
+     * the caller is not touched.
+     *
+     * @param batchSize maximum number of rows to apply
+     * @return number of applied rows
+     * @throws EFapsException on error
+     */
+    public int process(final int batchSize)
+        throws EFapsException
+    {
+        final var userName = Context.getThreadContext().getPerson().getName();
+        final var companyId = Context.getThreadContext().getCompany().getId();
+        final var eval = EQL.builder().print().query(CIPromo.PromotionInfoQueue)
+                        .where()
+                        .attribute(CIPromo.PromotionInfoQueue.Attempts).less(MAX_ATTEMPTS)
+                        .select()
+                        .attribute(CIPromo.PromotionInfoQueue.ID)
+                        .orderBy(CIPromo.PromotionInfoQueue.ID)
+                        .limit(batchSize)
+                        .evaluate();
+        final List<String> queueOids = new ArrayList<>();
+        while (eval.next()) {
+            queueOids.add(eval.inst().getOid());
+        }
+        final var ret = queueOids.isEmpty() ? 0 : applyAll(userName, companyId, queueOids, false);
+        LOG.debug("Applied {} of {} queued promotion infos", ret, queueOids.size());
+        return ret;
+    }
+
+    /**
+     * Applies the pending rows of one document right away, independent of
+     * their attempts. The call returns after the rows were applied.
+     *
+     * @param documentOid oid of the document
+     * @return <code>true</code> if nothing is left in the queue for the document
+     * @throws EFapsException on error
+     */
+    public boolean flush(final String documentOid)
+        throws EFapsException
+    {
+        final var userName = Context.getThreadContext().getPerson().getName();
+        final var companyId = Context.getThreadContext().getCompany().getId();
+        final var eval = EQL.builder().print().query(CIPromo.PromotionInfoQueue)
+                        .where()
+                        .attribute(CIPromo.PromotionInfoQueue.DocumentOID).eq(documentOid)
+                        .select()
+                        .attribute(CIPromo.PromotionInfoQueue.ID)
+                        .orderBy(CIPromo.PromotionInfoQueue.ID)
+                        .evaluate();
+        final List<String> queueOids = new ArrayList<>();
+        while (eval.next()) {
+            queueOids.add(eval.inst().getOid());
+        }
+        final var applied = queueOids.isEmpty() ? 0 : applyAll(userName, companyId, queueOids, true);
+        LOG.debug("Flushed {} of {} queued promotion infos for {}", applied, queueOids.size(), documentOid);
+        return applied == queueOids.size();
+    }
+
+    /**
+     * Applies the rows in a thread with a context of its own per row, the
+     * context of the caller is not touched.
+     */
+    private int applyAll(final String userName,
+                         final Long companyId,
+                         final List<String> queueOids,
+                         final boolean force)
+        throws EFapsException
+    {
+        int ret = 0;
+        final var executor = Executors.newSingleThreadExecutor();
+        try {
+            ret = executor.submit(() -> {
+                int applied = 0;
+                for (final var queueOid : queueOids) {
+                    if (apply(userName, companyId, queueOid, force)) {
+                        applied++;
+                    }
+                }
+                return applied;
+            }).get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (final ExecutionException e) {
+            throw new EFapsException(PromotionInfoQueue.class, "applyAll", e);
+        } finally {
+            executor.shutdownNow();
+        }
+        return ret;
+    }
+
+    /**
+     * @param documentOid oid of the document
+     * @return the latest info still queued for the document, <code>null</code>
+     *         if there is none
+     * @throws EFapsException on error
+     */
+    public PromotionInfoDto getQueued(final String documentOid)
+        throws EFapsException
+    {
+        final var eval = EQL.builder().print().query(CIPromo.PromotionInfoQueue)
+                        .where()
+                        .attribute(CIPromo.PromotionInfoQueue.DocumentOID).eq(documentOid)
+                        .select()
+                        .attribute(CIPromo.PromotionInfoQueue.PromoInfo)
+                        .orderBy(CIPromo.PromotionInfoQueue.ID)
+                        .evaluate();
+        String promoInfo = null;
+        while (eval.next()) {
+            promoInfo = eval.get(CIPromo.PromotionInfoQueue.PromoInfo);
+        }
+        PromotionInfoDto ret = null;
+        if (promoInfo != null) {
+            try {
+                ret = SerializationUtil.getObjectMapper().readValue(promoInfo, PromotionInfoDto.class);
+            } catch (final JsonProcessingException e) {
+                LOG.error("Catched", e);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return number of rows of the current company that are still pending,
+     *         at most {@link #BACKLOG_LIMIT}
+     * @throws EFapsException on error
+     */
+    public int getBacklog()
+        throws EFapsException
+    {
+        final var eval = EQL.builder().print().query(CIPromo.PromotionInfoQueue)
+                        .where()
+                        .attribute(CIPromo.PromotionInfoQueue.Attempts).less(MAX_ATTEMPTS)
+                        .select()
+                        .attribute(CIPromo.PromotionInfoQueue.ID)
+                        .limit(BACKLOG_LIMIT)
+                        .evaluate();
+        int ret = 0;
+        while (eval.next()) {
+            ret++;
+        }
+        return ret;
+    }
+
+    /**
+     * Applies one row if it can be claimed, runs in a thread without context.
+     *
+     * @param force apply also rows that failed {@link #MAX_ATTEMPTS} times
+     */
+    protected boolean apply(final String userName,
+                            final Long companyId,
+                            final String queueOid,
+                            final boolean force)
+        throws EFapsException
+    {
+        boolean ret = false;
+        final var token = UUID.randomUUID().toString();
+        if (getCache().putIfAbsent(queueOid, token, CLAIM_TIMEOUT, TimeUnit.MINUTES) == null) {
+            try {
+                ret = applyClaimed(userName, companyId, queueOid, force);
+            } finally {
+                getCache().remove(queueOid, token);
+            }
+        } else {
+            LOG.debug("Queued promotion info {} is applied by another node", queueOid);
+        }
+        return ret;
+    }
+
+    private boolean applyClaimed(final String userName,
+                                 final Long companyId,
+                                 final String queueOid,
+                                 final boolean force)
+        throws EFapsException
+    {
+        boolean ret = false;
+        String documentOid = null;
+        Integer attempts = null;
+        try {
+            Context.begin(userName);
+            boolean commit = false;
+            try {
+                Context.getThreadContext().setCompany(Company.get(companyId));
+                final var queueInst = Instance.get(queueOid);
+                // read again, the row might have been applied since it was selected
+                final var eval = EQL.builder().print(queueInst)
+                                .attribute(CIPromo.PromotionInfoQueue.DocumentOID,
+                                                CIPromo.PromotionInfoQueue.PromoInfo,
+                                                CIPromo.PromotionInfoQueue.Promotions,
+                                                CIPromo.PromotionInfoQueue.Attempts)
+                                .evaluate();
+                if (eval.next()) {
+                    documentOid = eval.get(CIPromo.PromotionInfoQueue.DocumentOID);
+                    attempts = eval.get(CIPromo.PromotionInfoQueue.Attempts);
+                    if (force || attempts == null || attempts < MAX_ATTEMPTS) {
+                        final var objectMapper = SerializationUtil.getObjectMapper();
+                        final var dto = objectMapper.readValue(
+                                        eval.<String>get(CIPromo.PromotionInfoQueue.PromoInfo),
+                                        PromotionInfoDto.class);
+                        // rows queued without promotions resolve them now
+                        final String promotionsStr = eval.get(CIPromo.PromotionInfoQueue.Promotions);
+                        List<String> promotions = null;
+                        if (promotionsStr != null) {
+                            promotions = new ArrayList<>();
+                            for (final var promotion : objectMapper.readTree(promotionsStr)) {
+                                promotions.add(objectMapper.writeValueAsString(promotion));
+                            }
+                        }
+                        deleteRelations(Instance.get(documentOid));
+                        new PromotionService().registerPromotionInfoForDoc(documentOid, dto, promotions);
+                        EQL.builder().delete(queueInst).execute();
+                        ret = true;
+                    }
+                }
+                commit = true;
+            } finally {
+                if (commit) {
+                    Context.commit();
+                } else {
+                    Context.rollback();
+                }
+            }
+        } catch (final JsonProcessingException | EFapsException | RuntimeException e) {
+            LOG.error("Applying queued promotion info for {} failed", documentOid, e);
+            ret = false;
+            registerFailure(userName, companyId, queueOid, attempts, e);
+        }
+        return ret;
+    }
+
+    /**
+     * Removes the relations registered for the document and its positions, so
+     * that applying a row again does not duplicate them.
+     */
+    protected void deleteRelations(final Instance docInst)
+        throws EFapsException
+    {
+        final var docEval = EQL.builder().print().query(CIPromo.Promotion2DocumentAbstract)
+                        .where()
+                        .attribute(CIPromo.Promotion2DocumentAbstract.ToLinkAbstract).eq(docInst)
+                        .select()
+                        .attribute(CIPromo.Promotion2DocumentAbstract.ID)
+                        .evaluate();
+        final List<Instance> relations = new ArrayList<>();
+        while (docEval.next()) {
+            relations.add(docEval.inst());
+        }
+        final var posEval = EQL.builder().print().query(CISales.PositionAbstract)
+                        .where()
+                        .attribute(CISales.PositionAbstract.DocumentAbstractLink).eq(docInst)
+                        .select()
+                        .attribute(CISales.PositionAbstract.ID)
+                        .evaluate();
+        final List<Long> posIds = new ArrayList<>();
+        while (posEval.next()) {
+            posIds.add(posEval.inst().getId());
+        }
+        if (!posIds.isEmpty()) {
+            final var relEval = EQL.builder().print().query(CIPromo.Promotion2PositionAbstract)
+                            .where()
+                            .attribute(CIPromo.Promotion2PositionAbstract.ToLinkAbstract).in(posIds.toArray())
+                            .select()
+                            .attribute(CIPromo.Promotion2PositionAbstract.ID)
+                            .evaluate();
+            while (relEval.next()) {
+                relations.add(relEval.inst());
+            }
+        }
+        for (final var relation : relations) {
+            EQL.builder().delete(relation).execute();
+        }
+        if (!relations.isEmpty()) {
+            LOG.info("Replacing {} promotion relations of {}", relations.size(), docInst.getOid());
+        }
+    }
+
+    private void registerFailure(final String userName,
+                                 final Long companyId,
+                                 final String queueOid,
+                                 final Integer attempts,
+                                 final Exception exception)
+    {
+        try {
+            Context.begin(userName);
+            boolean commit = false;
+            try {
+                Context.getThreadContext().setCompany(Company.get(companyId));
+                EQL.builder().update(Instance.get(queueOid))
+                                .set(CIPromo.PromotionInfoQueue.Attempts, attempts == null ? 1 : attempts + 1)
+                                .set(CIPromo.PromotionInfoQueue.Error,
+                                                StringUtils.left(String.valueOf(exception.getMessage()), 512))
+                                .execute();
+                commit = true;
+            } finally {
+                if (commit) {
+                    Context.commit();
+                } else {
+                    Context.rollback();
+                }
+            }
+        } catch (final EFapsException | RuntimeException e) {
+            LOG.error("Catched", e);
+        }
+    }
+
+    /**
+     * @return cache holding the claims of the rows currently applied
+     */
+    private static Cache<String, String> getCache()
+    {
+        if (!InfinispanCache.get().exists(CACHENAME)) {
+            InfinispanCache.get().initCache(CACHENAME);
+        }
+        return InfinispanCache.get().<String, String>getCache(CACHENAME);
+    }
+}
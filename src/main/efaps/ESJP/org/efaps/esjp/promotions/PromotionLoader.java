@@ -0,0 +1,511 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.esjp.promotions;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.OffsetTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.lang3.BooleanUtils;
+import org.apache.commons.lang3.EnumUtils;
+import org.apache.commons.lang3.tuple.Pair;
+import org.efaps.admin.program.esjp.EFapsApplication;
+import org.efaps.admin.program.esjp.EFapsUUID;
+import org.efaps.ci.CIAttribute;
+import org.efaps.ci.CIType;
+import org.efaps.db.Context;
+import org.efaps.db.Instance;
+import org.efaps.eql.EQL;
+import org.efaps.eql.builder.Print;
+import org.efaps.esjp.ci.CIPromo;
+import org.efaps.esjp.db.InstanceUtils;
+import org.efaps.esjp.promotions.cache.OidSet;
+import org.efaps.esjp.promotions.cache.ProductFamilyCache;
+import org.efaps.esjp.promotions.utils.Promotions.ConditionContainer;
+import org.efaps.esjp.promotions.utils.Promotions.EntryOperator;
+import org.efaps.esjp.promotions.utils.Promotions.LogicalOperator;
+import org.efaps.promotionengine.action.FixedAmountAction;
+import org.efaps.promotionengine.action.PercentageDiscountAction;
+import org.efaps.promotionengine.action.Strategy;
+import org.efaps.promotionengine.condition.BINCondition;
+import org.efaps.promotionengine.condition.BINRegexCondition;
+import org.efaps.promotionengine.condition.DateCondition;
+import org.efaps.promotionengine.condition.DocTotalCondition;
+import org.efaps.promotionengine.condition.ICondition;
+import org.efaps.promotionengine.condition.MaxCondition;
+import org.efaps.promotionengine.condition.Operator;
+import org.efaps.promotionengine.condition.OrCondition;
+import org.efaps.promotionengine.condition.ProductFamilyCondition;
+import org.efaps.promotionengine.condition.ProductFamilyConditionEntry;
+import org.efaps.promotionengine.condition.ProductTotalCondition;
+import org.efaps.promotionengine.condition.ProductsCondition;
+import org.efaps.promotionengine.condition.StackCondition;
+import org.efaps.promotionengine.condition.StoreCondition;
+import org.efaps.promotionengine.condition.TimeCondition;
+import org.efaps.promotionengine.promotion.Promotion;
+import org.efaps.util.EFapsException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Loads a set of promotions with a fixed number of queries. Instead of
+ * evaluating actions, conditions and their links promotion by promotion, every
+ * table is read once for the whole set and the promotions are assembled in
+ * memory afterwards.
+ */
+@EFapsUUID("0d3f0a64-4e57-4c4f-a3f5-5b7a3e5a2c11")
+@EFapsApplication("eFapsApp-Promotions")
+public class PromotionLoader
+{
+
+    private static final Logger LOG = LoggerFactory.getLogger(PromotionLoader.class);
+
+    /** Promotion id to builder, in the order the promotions were read. */
+    private final Map<Long, Promotion.Builder> builders = new LinkedHashMap<>();
+
+    /** Condition rows by id, in the order they were read. */
+    private final Map<Long, ConditionRow> conditions = new LinkedHashMap<>();
+
+    private final Map<Long, Set<String>> productsConditionProducts = new HashMap<>();
+    private final Map<Long, List<Pair<Long, String>>> familyConditionFamilies = new HashMap<>();
+    private final Map<Long, Set<String>> familyProducts = new HashMap<>();
+    private final Map<Long, List<String>> storeConditionIdentifiers = new HashMap<>();
+    private final Map<Long, List<Pair<LocalDate, LocalDate>>> dateConditionRanges = new HashMap<>();
+    private final Map<Long, List<Pair<LocalTime, LocalTime>>> timeConditionRanges = new HashMap<>();
+    private final Map<Long, List<String>> productTotalConditionProducts = new HashMap<>();
+    private final Map<Long, Set<String>> eqlConditionProducts = new HashMap<>();
+
+    public List<Promotion> load(final Print print)
+        throws EFapsException
+    {
+        final var promoEval = print
+                        .attribute(CIPromo.PromotionAbstract.Name, CIPromo.PromotionAbstract.Description,
+                                        CIPromo.PromotionAbstract.Label, CIPromo.PromotionAbstract.Priority,
+                                        CIPromo.PromotionAbstract.StartDateTime,
+                                        CIPromo.PromotionAbstract.EndDateTime)
+                        .evaluate();
+        while (promoEval.next()) {
+            builders.put(promoEval.inst().getId(), Promotion.builder()
+                            .withOid(promoEval.inst().getOid())
+                            .withName(promoEval.get(CIPromo.PromotionAbstract.Name))
+                            .withDescription(promoEval.get(CIPromo.PromotionAbstract.Description))
+                            .withLabel(promoEval.get(CIPromo.PromotionAbstract.Label))
+                            .withPriority(promoEval.get(CIPromo.PromotionAbstract.Priority))
+                            .withStartDateTime(promoEval.get(CIPromo.PromotionAbstract.StartDateTime))
+                            .withEndDateTime(promoEval.get(CIPromo.PromotionAbstract.EndDateTime)));
+        }
+        LOG.info("Loading {} promotions in bulk", builders.size());
+        final List<Promotion> promotions = new ArrayList<>();
+        if (!builders.isEmpty()) {
+            loadActions();
+            loadConditions();
+            loadConditionDetails();
+            loadEQLConditionProducts();
+            assemble();
+            for (final var promotionBldr : builders.values()) {
+                promotions.add(promotionBldr.build());
+            }
+        }
+        return promotions;
+    }
+
+    protected void loadActions()
+        throws EFapsException
+    {
+        final var eval = EQL.builder().print().query(CIPromo.ActionAbstract)
+                        .where()
+                        .attribute(CIPromo.ActionAbstract.PromotionLink).in(builders.keySet().toArray())
+                        .select()
+                        .attribute(CIPromo.ActionAbstract.PromotionLink, CIPromo.ActionAbstract.Decimal1,
+                                        CIPromo.ActionAbstract.Int1)
+                        .evaluate();
+        while (eval.next()) {
+            final var promotionBldr = builders.get(eval.<Long>get(CIPromo.ActionAbstract.PromotionLink));
+            final var decimal1 = eval.<BigDecimal>get(CIPromo.ActionAbstract.Decimal1);
+            final var int1 = eval.<Integer>get(CIPromo.ActionAbstract.Int1);
+            if (InstanceUtils.isType(eval.inst(), CIPromo.PercentageDiscountAction)) {
+                final var strategy = int1 == null ? Strategy.CHEAPEST : Strategy.values()[int1];
+                promotionBldr.addAction(new PercentageDiscountAction()
+                                .setPercentage(decimal1)
+                                .setStrategy(strategy));
+            } else if (InstanceUtils.isType(eval.inst(), CIPromo.FixedAmountAction)) {
+                final var strategy = int1 == null ? Strategy.CHEAPEST : Strategy.values()[int1];
+                promotionBldr.addAction(new FixedAmountAction()
+                                .setAmount(decimal1)
+                                .setStrategy(strategy));
+            }
+        }
+    }
+
+    /**
+     * Reads the conditions linked to the promotions and afterwards the child
+     * conditions of OrConditions, one query per nesting level.
+     */
+    protected void loadConditions()
+        throws EFapsException
+    {
+        var parentIds = readConditions(CIPromo.ConditionAbstract.PromotionLink, builders.keySet());
+        while (!parentIds.isEmpty()) {
+            parentIds = readConditions(CIPromo.ConditionAbstract.ParentConditionLink, parentIds);
+        }
+    }
+
+    private Collection<Long> readConditions(final CIAttribute linkAttribute,
+                                            final Collection<Long> linkIds)
+        throws EFapsException
+    {
+        final var orConditionIds = new ArrayList<Long>();
+        final var eval = EQL.builder().print().query(CIPromo.ConditionAbstract)
+                        .where()
+                        .attribute(linkAttribute).in(linkIds.toArray())
+                        .select()
+                        .attribute(CIPromo.ConditionAbstract.PromotionLink,
+                                        CIPromo.ConditionAbstract.ParentConditionLink,
+                                        CIPromo.ConditionAbstract.ConditionContainer, CIPromo.ConditionAbstract.Note,
+                                        CIPromo.ConditionAbstract.Int1, CIPromo.ConditionAbstract.Int2,
+                                        CIPromo.ConditionAbstract.Decimal1, CIPromo.ConditionAbstract.Boolean1,
+                                        CIPromo.ConditionAbstract.String1, CIPromo.ConditionAbstract.VarChar1)
+                        .evaluate();
+        while (eval.next()) {
+            final var row = new ConditionRow();
+            row.instance = eval.inst();
+            row.promotionId = eval.get(CIPromo.ConditionAbstract.PromotionLink);
+            row.parentId = eval.get(CIPromo.ConditionAbstract.ParentConditionLink);
+            row.container = eval.get(CIPromo.ConditionAbstract.ConditionContainer);
+            row.note = eval.get(CIPromo.ConditionAbstract.Note);
+            row.int1 = eval.get(CIPromo.ConditionAbstract.Int1);
+            row.int2 = eval.get(CIPromo.ConditionAbstract.Int2);
+            row.decimal1 = eval.get(CIPromo.ConditionAbstract.Decimal1);
+            row.boolean1 = eval.get(CIPromo.ConditionAbstract.Boolean1);
+            row.string1 = eval.get(CIPromo.ConditionAbstract.String1);
+            row.varChar1 = eval.get(CIPromo.ConditionAbstract.VarChar1);
+            conditions.put(row.instance.getId(), row);
+            if (InstanceUtils.isType(row.instance, CIPromo.OrCondition)) {
+                orConditionIds.add(row.instance.getId());
+            }
+        }
+        return orConditionIds;
+    }
+
+    protected void loadConditionDetails()
+        throws EFapsException
+    {
+        final var productsCondIds = filter(CIPromo.ProductsCondition);
+        if (!productsCondIds.isEmpty()) {
+            final var eval = EQL.builder().print().query(CIPromo.ProductsCondition2ProductAbstract).where()
+                            .attribute(CIPromo.ProductsCondition2ProductAbstract.FromLink)
+                            .in(productsCondIds.toArray())
+                            .select()
+                            .attribute(CIPromo.ProductsCondition2ProductAbstract.FromLink)
+                            .linkto(CIPromo.ProductsCondition2ProductAbstract.ToLink).oid().as("prodOid")
+                            .evaluate();
+            while (eval.next()) {
+                productsConditionProducts.computeIfAbsent(
+                                eval.<Long>get(CIPromo.ProductsCondition2ProductAbstract.FromLink),
+                                k -> new HashSet<>()).add(eval.get("prodOid"));
+            }
+        }
+
+        final var familyCondIds = filter(CIPromo.ProductFamilyCondition);
+        if (!familyCondIds.isEmpty()) {
+            final var familyIds = new HashSet<Long>();
+            final var eval = EQL.builder().print().query(CIPromo.ProductFamilyCondition2ProductFamilyAbstract)
+                            .where()
+                            .attribute(CIPromo.ProductFamilyCondition2ProductFamilyAbstract.FromLink)
+                            .in(familyCondIds.toArray())
+                            .select()
+                            .attribute(CIPromo.ProductFamilyCondition2ProductFamilyAbstract.FromLink)
+                            .linkto(CIPromo.ProductFamilyCondition2ProductFamilyAbstract.ToLink)
+                            .instance().as("familyInst")
+                            .evaluate();
+            while (eval.next()) {
+                final Instance familyInst = eval.get("familyInst");
+                familyIds.add(familyInst.getId());
+                familyConditionFamilies.computeIfAbsent(
+                                eval.<Long>get(CIPromo.ProductFamilyCondition2ProductFamilyAbstract.FromLink),
+                                k -> new ArrayList<>()).add(Pair.of(familyInst.getId(), familyInst.getOid()));
+            }
+            if (!familyIds.isEmpty()) {
+                familyProducts.putAll(ProductFamilyCache.getProducts(familyIds));
+            }
+        }
+
+        final var storeCondIds = filter(CIPromo.StoreCondition);
+        if (!storeCondIds.isEmpty()) {
+            final var eval = EQL.builder().print().query(CIPromo.StoreCondition2POSBackend)
+                            .where()
+                            .attribute(CIPromo.StoreCondition2POSBackend.FromLink).in(storeCondIds.toArray())
+                            .select()
+                            .attribute(CIPromo.StoreCondition2POSBackend.FromLink)
+                            .linkto(CIPromo.StoreCondition2POSBackend.ToLink)
+                            .attribute("Identifier").as("backendIdentifier")
+                            .evaluate();
+            while (eval.next()) {
+                storeConditionIdentifiers.computeIfAbsent(
+                                eval.<Long>get(CIPromo.StoreCondition2POSBackend.FromLink),
+                                k -> new ArrayList<>()).add(eval.get("backendIdentifier"));
+            }
+        }
+
+        final var dateCondIds = filter(CIPromo.DateCondition);
+        if (!dateCondIds.isEmpty()) {
+            final var eval = EQL.builder().print().query(CIPromo.DateConditionEntry)
+                            .where()
+                            .attribute(CIPromo.DateConditionEntry.DateConditionLink).in(dateCondIds.toArray())
+                            .select()
+                            .attribute(CIPromo.DateConditionEntry.DateConditionLink,
+                                            CIPromo.DateConditionEntry.StartDate, CIPromo.DateConditionEntry.EndDate)
+                            .evaluate();
+            while (eval.next()) {
+                final LocalDate startDate = eval.get(CIPromo.DateConditionEntry.StartDate);
+                final LocalDate endDate = eval.get(CIPromo.DateConditionEntry.EndDate);
+                dateConditionRanges.computeIfAbsent(eval.<Long>get(CIPromo.DateConditionEntry.DateConditionLink),
+                                k -> new ArrayList<>()).add(Pair.of(startDate, endDate));
+            }
+        }
+
+        final var timeCondIds = filter(CIPromo.TimeCondition);
+        if (!timeCondIds.isEmpty()) {
+            final var eval = EQL.builder().print().query(CIPromo.TimeConditionEntry)
+                            .where()
+                            .attribute(CIPromo.TimeConditionEntry.TimeConditionLink).in(timeCondIds.toArray())
+                            .select()
+                            .attribute(CIPromo.TimeConditionEntry.TimeConditionLink,
+                                            CIPromo.TimeConditionEntry.StartTime, CIPromo.TimeConditionEntry.EndTime)
+                            .evaluate();
+            while (eval.next()) {
+                final LocalTime startTime = eval.get(CIPromo.TimeConditionEntry.StartTime);
+                final LocalTime endTime = eval.get(CIPromo.TimeConditionEntry.EndTime);
+                timeConditionRanges.computeIfAbsent(eval.<Long>get(CIPromo.TimeConditionEntry.TimeConditionLink),
+                                k -> new ArrayList<>()).add(Pair.of(startTime, endTime));
+            }
+        }
+
+        final var productTotalCondIds = filter(CIPromo.ProductTotalCondition);
+        if (!productTotalCondIds.isEmpty()) {
+            final var eval = EQL.builder().print().query(CIPromo.ProductTotalCondition2ProductAbstract).where()
+                            .attribute(CIPromo.ProductTotalCondition2ProductAbstract.FromLink)
+                            .in(productTotalCondIds.toArray())
+                            .select()
+                            .attribute(CIPromo.ProductTotalCondition2ProductAbstract.FromLink)
+                            .linkto(CIPromo.ProductTotalCondition2ProductAbstract.ToLink).oid().as("prodOid")
+                            .evaluate();
+            while (eval.next()) {
+                productTotalConditionProducts.computeIfAbsent(
+                                eval.<Long>get(CIPromo.ProductTotalCondition2ProductAbstract.FromLink),
+                                k -> new ArrayList<>()).add(eval.get("prodOid"));
+            }
+        }
+    }
+
+    /**
+     * The definitions of all ProductsEQLConditions are read with one query.
+     * Conditions with the same definitions share their statement, and only
+     * statements that are not in the EQL cache are evaluated.
+     */
+    protected void loadEQLConditionProducts()
+        throws EFapsException
+    {
+        final var eqlCondIds = filter(CIPromo.ProductsEQLCondition);
+        if (!eqlCondIds.isEmpty()) {
+            final Map<Long, List<Pair<Long, Long>>> definitions = new HashMap<>();
+            final var eval = EQL.builder().print().query(CIPromo.EQLAttributeDefinition)
+                            .where()
+                            .attribute(CIPromo.EQLAttributeDefinition.ConditionLink).in(eqlCondIds.toArray())
+                            .select()
+                            .attribute(CIPromo.EQLAttributeDefinition.ConditionLink,
+                                            CIPromo.EQLAttributeDefinition.AttributeDefinitionType,
+                                            CIPromo.EQLAttributeDefinition.AttributeDefinitionValue)
+                            .evaluate();
+            while (eval.next()) {
+                definitions.computeIfAbsent(eval.<Long>get(CIPromo.EQLAttributeDefinition.ConditionLink),
+                                k -> new ArrayList<>())
+                                .add(Pair.of(eval.get(CIPromo.EQLAttributeDefinition.AttributeDefinitionType),
+                                                eval.get(CIPromo.EQLAttributeDefinition.AttributeDefinitionValue)));
+            }
+            final Map<String, Set<String>> stmt2products = new HashMap<>();
+            for (final var condId : eqlCondIds) {
+                final var row = conditions.get(condId);
+                final var operator = row.int2 == null ? LogicalOperator.AND : LogicalOperator.values()[row.int2];
+                final var stmt = PromotionService.evalEQLStmt(operator, definitions.getOrDefault(condId, List.of()));
+                var products = stmt2products.get(stmt);
+                if (products == null) {
+                    products = PromotionService.evalProductOids4Stmt(stmt);
+                    stmt2products.put(stmt, products);
+                }
+                eqlConditionProducts.put(condId, products);
+            }
+        }
+    }
+
+    /**
+     * Builds all conditions first and attaches them afterwards, so that the
+     * children of an OrCondition keep the order they were read in.
+     */
+    protected void assemble()
+        throws EFapsException
+    {
+        final Map<Long, ICondition> id2condition = new HashMap<>();
+        for (final var row : conditions.values()) {
+            id2condition.put(row.instance.getId(), evalCondition(row));
+        }
+        for (final var row : conditions.values()) {
+            final var condition = id2condition.get(row.instance.getId());
+            if (row.parentId != null && id2condition.containsKey(row.parentId)) {
+                ((OrCondition) id2condition.get(row.parentId)).addCondition(condition);
+            } else if (row.promotionId != null && builders.containsKey(row.promotionId)) {
+                if (ConditionContainer.SOURCE.equals(row.container)) {
+                    builders.get(row.promotionId).addSourceCondition(condition);
+                } else {
+                    builders.get(row.promotionId).addTargetCondition(condition);
+                }
+            }
+        }
+    }
+
+    protected ICondition evalCondition(final ConditionRow row)
+        throws EFapsException
+    {
+        ICondition condition = null;
+        final var id = row.instance.getId();
+        if (InstanceUtils.isType(row.instance, CIPromo.ProductsCondition)) {
+            condition = new ProductsCondition()
+                            .setPositionQuantity(row.decimal1)
+                            .setEntryOperator(evalEntryOperator(row))
+                            .setAllowTargetSameAsSource(BooleanUtils.toBoolean(row.boolean1))
+                            .setProducts(OidSet.intern(productsConditionProducts.getOrDefault(id, Set.of())))
+                            .setNote(row.note);
+        } else if (InstanceUtils.isType(row.instance, CIPromo.ProductFamilyCondition)) {
+            final var entries = new ArrayList<ProductFamilyConditionEntry>();
+            for (final var family : familyConditionFamilies.getOrDefault(id, List.of())) {
+                final var entry = new ProductFamilyConditionEntry().setProductFamilyOid(family.getRight());
+                entries.add(entry);
+                for (final var prodOid : familyProducts.getOrDefault(family.getLeft(), Set.of())) {
+                    entry.addProduct(prodOid);
+                }
+            }
+            condition = new ProductFamilyCondition()
+                            .setEntryOperator(evalEntryOperator(row))
+                            .setAllowTargetSameAsSource(BooleanUtils.toBoolean(row.boolean1))
+                            .setEntries(entries)
+                            .setNote(row.note);
+        } else if (InstanceUtils.isType(row.instance, CIPromo.StoreCondition)) {
+            condition = new StoreCondition()
+                            .setEntryOperator(evalEntryOperator(row))
+                            .setNote(row.note);
+            for (final var backendIdentifier : storeConditionIdentifiers.getOrDefault(id, List.of())) {
+                ((StoreCondition) condition).addIdentifier(backendIdentifier);
+            }
+        } else if (InstanceUtils.isType(row.instance, CIPromo.ProductsEQLCondition)) {
+            condition = new ProductsCondition()
+                            .setPositionQuantity(row.decimal1)
+                            .setEntryOperator(evalEntryOperator(row))
+                            .setAllowTargetSameAsSource(BooleanUtils.toBoolean(row.boolean1))
+                            .setProducts(OidSet.intern(eqlConditionProducts.getOrDefault(id, Set.of())))
+                            .setNote(row.note);
+        } else if (InstanceUtils.isType(row.instance, CIPromo.DateCondition)) {
+            condition = new DateCondition().setNote(row.note);
+            for (final var range : dateConditionRanges.getOrDefault(id, List.of())) {
+                ((DateCondition) condition).addRange(range.getLeft(), range.getRight());
+            }
+        } else if (InstanceUtils.isType(row.instance, CIPromo.TimeCondition)) {
+            condition = new TimeCondition().setNote(row.note);
+            for (final var range : timeConditionRanges.getOrDefault(id, List.of())) {
+                ((TimeCondition) condition).addRange(
+                                range.getLeft().atOffset(
+                                                OffsetTime.now(Context.getThreadContext().getZoneId()).getOffset()),
+                                range.getRight().atOffset(OffsetTime.now(Context.getThreadContext().getZoneId())
+                                                .getOffset()));
+            }
+        } else if (InstanceUtils.isType(row.instance, CIPromo.DocTotalCondition)) {
+            condition = new DocTotalCondition()
+                            .setTotal(row.decimal1)
+                            .setOperator(Operator.values()[row.int1])
+                            .setNote(row.note);
+        } else if (InstanceUtils.isType(row.instance, CIPromo.ProductTotalCondition)) {
+            condition = new ProductTotalCondition()
+                            .setTotal(row.decimal1)
+                            .setOperator(Operator.values()[row.int1])
+                            .setNote(row.note);
+            for (final var prodOid : productTotalConditionProducts.getOrDefault(id, List.of())) {
+                ((ProductTotalCondition) condition).addProduct(prodOid);
+            }
+        } else if (InstanceUtils.isType(row.instance, CIPromo.MaxCondition)) {
+            condition = new MaxCondition()
+                            .setMax(row.int1)
+                            .setNote(row.note);
+        } else if (InstanceUtils.isType(row.instance, CIPromo.StackCondition)) {
+            condition = new StackCondition()
+                            .setNote(row.note);
+        } else if (InstanceUtils.isType(row.instance, CIPromo.OrCondition)) {
+            condition = new OrCondition()
+                            .setNote(row.note);
+        } else if (InstanceUtils.isType(row.instance, CIPromo.BINCondition)) {
+            condition = new BINCondition()
+                            .setNote(row.note);
+            for (final var value : row.varChar1.split("\n")) {
+                ((BINCondition) condition).addIdentifier(value);
+            }
+        } else if (InstanceUtils.isType(row.instance, CIPromo.BINRegexCondition)) {
+            condition = new BINRegexCondition()
+                            .setRegex(row.string1)
+                            .setNote(row.note);
+        }
+        return condition;
+    }
+
+    private org.efaps.promotionengine.condition.EntryOperator evalEntryOperator(final ConditionRow row)
+    {
+        final var entryOperator = EntryOperator.values()[row.int1];
+        return EnumUtils.getEnum(org.efaps.promotionengine.condition.EntryOperator.class, entryOperator.name());
+    }
+
+    private List<Long> filter(final CIType ciType)
+    {
+        final var ret = new ArrayList<Long>();
+        for (final var row : conditions.values()) {
+            if (InstanceUtils.isType(row.instance, ciType)) {
+                ret.add(row.instance.getId());
+            }
+        }
+        return ret;
+    }
+
+    protected static class ConditionRow
+    {
+
+        private Instance instance;
+        private Long promotionId;
+        private Long parentId;
+        private ConditionContainer container;
+        private String note;
+        private Integer int1;
+        private Integer int2;
+        private BigDecimal decimal1;
+        private Boolean boolean1;
+        private String string1;
+        private String varChar1;
+    }
+}
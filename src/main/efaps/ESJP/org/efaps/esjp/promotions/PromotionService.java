@@ -15,22 +15,23 @@
  */
 package org.efaps.esjp.promotions;
 
-import java.math.BigDecimal;
-import java.time.LocalDate;
-import java.time.LocalTime;
-import java.time.OffsetTime;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.OffsetDateTime;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
-import org.apache.commons.lang3.BooleanUtils;
-import org.apache.commons.lang3.EnumUtils;
 import org.apache.commons.lang3.tuple.Pair;
 import org.efaps.admin.datamodel.Type;
 import org.efaps.admin.event.Parameter;
@@ -41,7 +42,6 @@ import org.efaps.ci.CIType;
 import org.efaps.db.Context;
 import org.efaps.db.Instance;
 import org.efaps.db.stmt.PrintStmt;
-import org.efaps.db.stmt.selection.Evaluator;
 import org.efaps.eql.EQL;
 import org.efaps.eql.builder.Print;
 import org.efaps.eql2.IPrintQueryStatement;
@@ -52,35 +52,24 @@ import org.efaps.esjp.ci.CISales;
 import org.efaps.esjp.common.properties.PropertiesUtil;
 import org.efaps.esjp.common.serialization.SerializationUtil;
 import org.efaps.esjp.db.InstanceUtils;
+import org.efaps.esjp.promotions.cache.PromotionCodec;
+import org.efaps.esjp.promotions.cache.PromotionIndex;
+import org.efaps.esjp.promotions.cache.ProductFamilyCache;
+import org.efaps.esjp.promotions.cache.PromotionSnapshot;
+import org.efaps.esjp.promotions.cache.SingleFlight;
+import org.efaps.esjp.promotions.rest.modules.PromotionChangesDto;
 import org.efaps.esjp.promotions.rest.modules.PromotionHeadDto;
+import org.efaps.esjp.promotions.utils.BackendRegistry;
+import org.efaps.esjp.promotions.utils.ProductPriceCache;
+import org.efaps.esjp.promotions.utils.ProductSearchIndex;
 import org.efaps.esjp.promotions.utils.Promotions;
-import org.efaps.esjp.promotions.utils.Promotions.ConditionContainer;
-import org.efaps.esjp.promotions.utils.Promotions.EntryOperator;
 import org.efaps.esjp.promotions.utils.Promotions.LogicalOperator;
-import org.efaps.promotionengine.action.FixedAmountAction;
-import org.efaps.promotionengine.action.PercentageDiscountAction;
-import org.efaps.promotionengine.action.Strategy;
 import org.efaps.promotionengine.api.IPromotionsProvider;
-import org.efaps.promotionengine.condition.BINCondition;
-import org.efaps.promotionengine.condition.BINRegexCondition;
-import org.efaps.promotionengine.condition.DateCondition;
-import org.efaps.promotionengine.condition.DocTotalCondition;
-import org.efaps.promotionengine.condition.ICondition;
-import org.efaps.promotionengine.condition.MaxCondition;
-import org.efaps.promotionengine.condition.Operator;
-import org.efaps.promotionengine.condition.OrCondition;
-import org.efaps.promotionengine.condition.ProductFamilyCondition;
-import org.efaps.promotionengine.condition.ProductFamilyConditionEntry;
-import org.efaps.promotionengine.condition.ProductTotalCondition;
-import org.efaps.promotionengine.condition.ProductsCondition;
-import org.efaps.promotionengine.condition.StackCondition;
-import org.efaps.promotionengine.condition.StoreCondition;
-import org.efaps.promotionengine.condition.TimeCondition;
+import org.efaps.promotionengine.dto.PromotionDetailDto;
 import org.efaps.promotionengine.dto.PromotionInfoDto;
 import org.efaps.promotionengine.promotion.Promotion;
 import org.efaps.util.EFapsBaseException;
 import org.efaps.util.EFapsException;
-import org.efaps.util.cache.CacheReloadException;
 import org.efaps.util.cache.InfinispanCache;
 import org.infinispan.Cache;
 import org.slf4j.Logger;
@@ -97,37 +86,151 @@ public class PromotionService
     private static final Logger LOG = LoggerFactory.getLogger(PromotionService.class);
 
     private static final String CACHENAME = PromotionService.class.getName() + ".Cache";
+    private static final String DATACACHENAME = PromotionService.class.getName() + ".DataCache";
+    private static final String EQLCACHENAME = PromotionService.class.getName() + ".EQLCache";
 
     private static final String CACHEPREFIX = "ACTIVE";
     private static final String CACHEPREFIX_CLEAN = CACHEPREFIX + "-CLEAN";
     private static final String CACHEPREFIX_LOADING = CACHEPREFIX + "-LOADING";
+    private static final String CACHEPREFIX_VERSION = CACHEPREFIX + "-VERSION";
+    private static final String CACHEPREFIX_DIRTY = CACHEPREFIX + "-DIRTY";
+    private static final String CACHEPREFIX_HISTORY = CACHEPREFIX + "-HISTORY";
 
+    /** Lifespan of the loading marker in minutes, releases the slot of a node that died while loading. */
+    private static final long LOADING_TIMEOUT = 10;
+
+    /** Hours the index of a published version is kept to answer change requests. */
+    private static final long HISTORY_LIFESPAN = 24;
+
+    /** Seconds a caller without any snapshot waits for a running load. */
+    private static final long AWAIT_TIMEOUT = 60;
+
+    /** Minutes the products resolved for a EQL statement are kept. */
+    private static final long EQL_LIFESPAN = 30;
+
+    /** Running loads of this node by company id. */
+    private static final SingleFlight<PromotionSnapshot> LOADERS = new SingleFlight<>(AWAIT_TIMEOUT,
+                    TimeUnit.SECONDS);
+
+    /**
+     * Used as trigger and by the CleanPromotionCacheJob. If the instance of the
+     * parameter can be resolved to its promotion only that promotion is
+     * invalidated, else the whole cache is cleaned.
+     */
     public Return cleanCache(final Parameter parameter)
         throws EFapsException
     {
-        LOG.info("Clean cache");
-        getCache().put(evalCacheKey(CACHEPREFIX_CLEAN), "true");
+        final var instance = parameter.getInstance();
+        final var promotionOid = InstanceUtils.isValid(instance) ? evalPromotionOid(instance) : null;
+        if (promotionOid == null) {
+            LOG.info("Clean cache");
+            getCache().put(evalCacheKey(CACHEPREFIX_CLEAN), "true");
+            ProductFamilyCache.clean();
+            getEQLCache().clear();
+            ProductPriceCache.invalidate();
+            ProductSearchIndex.invalidate();
+            BackendRegistry.refresh();
 
-        for (final var key : getCache().keySet()) {
-            if (key.contains(".")) {
-                getCache().remove(key);
+            // the data cache is shared by all companies, only evict the entries of this one
+            for (final var oid : parseIndex(getCache().get(evalCacheKey(CACHEPREFIX))).keySet()) {
+                getDataCache().remove(oid);
             }
+        } else {
+            LOG.info("Invalidating promotion {} for {}", promotionOid, instance.getOid());
+            getDataCache().remove(promotionOid);
+            markDirty(promotionOid);
         }
         return new Return();
     }
 
-    public Promotion getPromotion(final Instance promotionInstance)
+    /**
+     * Resolves an object of the promotion datamodel to the oid of the promotion
+     * it belongs to.
+     *
+     * @param instance instance of a promotion, action, condition or of one of
+     *            their links and entries
+     * @return oid of the promotion, <code>null</code> if it cannot be resolved
+     * @throws EFapsException on error
+     */
+    protected String evalPromotionOid(final Instance instance)
         throws EFapsException
     {
-        List<Promotion> promotions = null;
-        if (getCache().containsKey(promotionInstance.getOid())) {
-            promotions = loadPromotions(promotionInstance.getOid());
+        String ret = null;
+        if (InstanceUtils.isKindOf(instance, CIPromo.PromotionAbstract)) {
+            ret = instance.getOid();
+        } else if (InstanceUtils.isKindOf(instance, CIPromo.ActionAbstract)) {
+            final var eval = EQL.builder().print(instance)
+                            .linkto(CIPromo.ActionAbstract.PromotionLink).oid().as("promoOid")
+                            .evaluate();
+            if (eval.next()) {
+                ret = eval.get("promoOid");
+            }
         } else {
+            Long conditionId = null;
+            if (InstanceUtils.isKindOf(instance, CIPromo.ConditionAbstract)) {
+                conditionId = instance.getId();
+            } else if (InstanceUtils.isKindOf(instance, CIPromo.Object2ObjectAbstract)) {
+                final var eval = EQL.builder().print(instance)
+                                .attribute(CIPromo.Object2ObjectAbstract.FromID)
+                                .evaluate();
+                if (eval.next()) {
+                    conditionId = eval.get(CIPromo.Object2ObjectAbstract.FromID);
+                }
+            } else if (InstanceUtils.isKindOf(instance, CIPromo.ChildObjectAbstract)) {
+                final var eval = EQL.builder().print(instance)
+                                .attribute(CIPromo.ChildObjectAbstract.ParentID)
+                                .evaluate();
+                if (eval.next()) {
+                    conditionId = eval.get(CIPromo.ChildObjectAbstract.ParentID);
+                }
+            } else if (InstanceUtils.isKindOf(instance, CIPromo.EQLAbstract)) {
+                final var eval = EQL.builder().print(instance)
+                                .attribute(CIPromo.EQLAbstract.ConditionLink)
+                                .evaluate();
+                if (eval.next()) {
+                    conditionId = eval.get(CIPromo.EQLAbstract.ConditionLink);
+                }
+            }
+            // walk up the OrConditions until the promotion is reached
+            while (conditionId != null && ret == null) {
+                final var eval = EQL.builder().print().query(CIPromo.ConditionAbstract)
+                                .where()
+                                .attribute(CIPromo.ConditionAbstract.ID).eq(conditionId)
+                                .select()
+                                .attribute(CIPromo.ConditionAbstract.ParentConditionLink)
+                                .linkto(CIPromo.ConditionAbstract.PromotionLink).oid().as("promoOid")
+                                .evaluate();
+                conditionId = null;
+                if (eval.next()) {
+                    ret = eval.get("promoOid");
+                    conditionId = eval.get(CIPromo.ConditionAbstract.ParentConditionLink);
+                }
+            }
+        }
+        return ret;
+    }
+
+    public Promotion getPromotion(final Instance promotionInstance)
+        throws EFapsException
+    {
+        final var oid = promotionInstance.getOid();
+        final var snapshot = PromotionSnapshot.get(Context.getThreadContext().getCompany().getId());
+        Promotion ret = null;
+        if (snapshot != null && snapshot.isVersion(getCache().get(evalCacheKey(CACHEPREFIX_VERSION)))) {
+            ret = snapshot.getPromotion(oid);
+        }
+        if (ret == null) {
+            ret = loadPromotion(oid);
+        }
+        if (ret == null) {
             final Print print = EQL.builder().print(promotionInstance);
-            promotions = evalPromotions(print);
-            cachePromotions(promotions, promotionInstance.getOid(), 10, TimeUnit.MINUTES);
+            final var promotions = evalPromotions(print);
+            if (!promotions.isEmpty()) {
+                ret = promotions.get(0);
+                cachePromotion(ret);
+            }
         }
-        return promotions == null ? null : promotions.isEmpty() ? null : promotions.get(0);
+        return ret;
     }
 
     public Promotion getPromotion(final String oid)
@@ -140,6 +243,54 @@ public class PromotionService
         return null;
     }
 
+    /**
+     * Changes of the active promotions since the given version, for clients
+     * that keep their own copy. A new version is published with every reload
+     * after a trigger-driven invalidation. The index of every version, also of
+     * one that is only local to a node, is kept for {@link #HISTORY_LIFESPAN}
+     * hours. For an unknown version all promotions are returned.
+     *
+     * @param sinceVersion version the client has seen, may be <code>null</code>
+     * @return the changes, <code>null</code> if no promotions could be loaded
+     * @throws EFapsException on error
+     */
+    public PromotionChangesDto getPromotionChanges(final String sinceVersion)
+        throws EFapsException
+    {
+        final var snapshot = getSnapshot();
+        PromotionChangesDto ret = null;
+        if (snapshot != null) {
+            final var now = OffsetDateTime.now(Context.getThreadContext().getZoneId());
+            final var builder = PromotionChangesDto.builder().withVersion(snapshot.getVersion());
+            if (!snapshot.isVersion(sinceVersion)) {
+                final var previous = sinceVersion == null ? null
+                                : getCache().get(evalCacheKey(CACHEPREFIX_HISTORY) + "-" + sinceVersion);
+                if (previous == null) {
+                    builder.withFull(true).withAdded(snapshot.getUnexpiredPromotions(now));
+                } else {
+                    // expired promotions stay in the previous index and are reported as removed
+                    final var previousIndex = parseIndex(previous);
+                    final List<Promotion> added = new ArrayList<>();
+                    final List<Promotion> changed = new ArrayList<>();
+                    for (final var promotion : snapshot.getUnexpiredPromotions(now)) {
+                        final var previousVersion = previousIndex.remove(promotion.getOid());
+                        if (previousVersion == null) {
+                            added.add(promotion);
+                        } else if (!previousVersion.equals(snapshot.getPromotionVersion(promotion.getOid()))) {
+                            changed.add(promotion);
+                        }
+                    }
+                    builder.withAdded(added).withChanged(changed).withRemoved(new ArrayList<>(previousIndex.keySet()));
+                }
+            } else {
+                // the version does not change when a promotion ends, removing is idempotent for the client
+                builder.withRemoved(snapshot.getExpiredOids(now));
+            }
+            ret = builder.build();
+        }
+        return ret;
+    }
+
     public List<PromotionHeadDto> getPromotionHeads()
         throws EFapsException
     {
@@ -165,300 +316,298 @@ public class PromotionService
         return ret;
     }
 
+    /**
+     * The caller evaluates the promotions at an instant unknown here, so the
+     * promotions are not filtered by their window. Only promotions whose end
+     * passed are left out, they stay active until the
+     * DeactivatePromotionJob ran.
+     */
     @Override
     public List<Promotion> getPromotions()
         throws EFapsException
     {
-
         LOG.info("Getting Promotions");
-        var promotions = retrievePromotions();
-        if (promotions == null && !getCache().containsKey(evalCacheKey(CACHEPREFIX_LOADING))) {
-            getCache().put(evalCacheKey(CACHEPREFIX_LOADING), "true", 10, TimeUnit.MINUTES);
-            final Print promoEval = EQL.builder().print().query(CIPromo.PromotionAbstract)
-                            .where()
-                            .attribute(CIPromo.PromotionAbstract.StatusAbstract)
-                            .eq(CIPromo.PromotionStatus.Active)
-                            .select();
-            promotions = evalPromotions(promoEval);
-            cachePromotions(promotions, evalCacheKey(CACHEPREFIX));
-            getCache().remove(evalCacheKey(CACHEPREFIX_LOADING));
-        }
-        return promotions;
+        final var snapshot = getSnapshot();
+        return snapshot == null ? null
+                        : snapshot.getUnexpiredPromotions(OffsetDateTime.now(Context.getThreadContext().getZoneId()));
     }
 
-    protected List<Promotion> evalPromotions(final Print print)
+    /**
+     * @param dateTime evaluation instant
+     * @return the active promotions that can be valid at the instant, as
+     *         given by their start, end, date and time conditions
+     * @throws EFapsException on error
+     */
+    public List<Promotion> getPromotions(final OffsetDateTime dateTime)
         throws EFapsException
     {
-        final List<Promotion> promotions = new ArrayList<>();
+        return getPromotions(dateTime, null);
+    }
 
-        final var promoEval = print
-                        .attribute(CIPromo.PromotionAbstract.Name, CIPromo.PromotionAbstract.Description,
-                                        CIPromo.PromotionAbstract.Label, CIPromo.PromotionAbstract.Priority,
-                                        CIPromo.PromotionAbstract.StartDateTime,
-                                        CIPromo.PromotionAbstract.EndDateTime)
-                        .evaluate();
-        while (promoEval.next()) {
-            final var promotionBldr = Promotion.builder()
-                            .withOid(promoEval.inst().getOid())
-                            .withName(promoEval.get(CIPromo.PromotionAbstract.Name))
-                            .withDescription(promoEval.get(CIPromo.PromotionAbstract.Description))
-                            .withLabel(promoEval.get(CIPromo.PromotionAbstract.Label))
-                            .withPriority(promoEval.get(CIPromo.PromotionAbstract.Priority))
-                            .withStartDateTime(promoEval.get(CIPromo.PromotionAbstract.StartDateTime))
-                            .withEndDateTime(promoEval.get(CIPromo.PromotionAbstract.EndDateTime));
-            evalActions(promoEval.inst(), promotionBldr);
-            evalConditions(promoEval.inst(), promotionBldr);
-            promotions.add(promotionBldr.build());
-        }
-        return promotions;
+    /**
+     * @param dateTime evaluation instant
+     * @param backendIdentifier identifier of the POS backend,
+     *            <code>null</code> for all backends
+     * @return the promotions that can be valid at the instant and whose store
+     *         condition allows the backend, plus the ones without store
+     *         condition
+     * @throws EFapsException on error
+     */
+    public List<Promotion> getPromotions(final OffsetDateTime dateTime,
+                                         final String backendIdentifier)
+        throws EFapsException
+    {
+        final var snapshot = getSnapshot();
+        return snapshot == null ? null : snapshot.getPromotions(dateTime, backendIdentifier);
     }
 
-    public void evalActions(final Instance promoInst,
-                            final Promotion.Builder promotionBldr)
+    /**
+     * Same as {@link #getPromotions()}, but only with the promotions whose
+     * store condition allows the backend and the ones without store
+     * condition. The backend evaluates the promotions at its own instants, so
+     * they are not filtered by their window.
+     *
+     * @param backendIdentifier identifier of the POS backend
+     * @return the promotions for the backend, <code>null</code> if no
+     *         promotions could be loaded
+     * @throws EFapsException on error
+     */
+    public List<Promotion> getPromotions4Backend(final String backendIdentifier)
         throws EFapsException
     {
-        final var eval = EQL.builder().print().query(CIPromo.ActionAbstract)
-                        .where()
-                        .attribute(CIPromo.ActionAbstract.PromotionLink).eq(promoInst)
-                        .select()
-                        .attribute(CIPromo.ActionAbstract.ID, CIPromo.ActionAbstract.Decimal1,
-                                        CIPromo.ActionAbstract.Int1)
-                        .evaluate();
-        while (eval.next()) {
-            final var decimal1 = eval.<BigDecimal>get(CIPromo.ActionAbstract.Decimal1);
-            final var int1 = eval.<Integer>get(CIPromo.ActionAbstract.Int1);
-            if (InstanceUtils.isType(eval.inst(), CIPromo.PercentageDiscountAction)) {
-                final var strategy = int1 == null ? Strategy.CHEAPEST : Strategy.values()[int1];
-                promotionBldr.addAction(new PercentageDiscountAction()
-                                .setPercentage(decimal1)
-                                .setStrategy(strategy));
-            } else if (InstanceUtils.isType(eval.inst(), CIPromo.FixedAmountAction)) {
-                final var strategy = int1 == null ? Strategy.CHEAPEST : Strategy.values()[int1];
-                promotionBldr.addAction(new FixedAmountAction()
-                                .setAmount(decimal1)
-                                .setStrategy(strategy));
+        final var snapshot = getSnapshot();
+        return snapshot == null ? null
+                        : snapshot.getUnexpiredPromotions(OffsetDateTime.now(Context.getThreadContext().getZoneId()),
+                                        backendIdentifier);
+    }
+
+    /**
+     * @return index over the active promotions, used to hand only the
+     *         promotions to the calculator that can possibly match a document
+     * @throws EFapsException on error
+     */
+    public PromotionIndex getPromotionIndex()
+        throws EFapsException
+    {
+        final var snapshot = getSnapshot();
+        return snapshot == null ? null : snapshot.getIndex();
+    }
+
+    /**
+     * Loads the snapshot of the current company if it is missing or stale,
+     * used by the WarmPromotionCacheJob so that the first document does not
+     * pay for the load.
+     *
+     * @return number of active promotions
+     * @throws EFapsException on error
+     */
+    public int warmCache()
+        throws EFapsException
+    {
+        final var snapshot = getSnapshot();
+        if (snapshot != null) {
+            snapshot.prepareBuckets(OffsetDateTime.now(Context.getThreadContext().getZoneId()), 168);
+            if (Promotions.CALCULATOR_INDEX.get()) {
+                snapshot.getIndex();
             }
         }
+        return snapshot == null ? 0 : snapshot.getPromotions().size();
     }
 
-    public void evalConditions(final Instance promoInst,
-                               final Promotion.Builder promotionBldr)
+    protected PromotionSnapshot getSnapshot()
         throws EFapsException
     {
-        LOG.info("Evaluating Conditions for: {}", promoInst.getOid());
-        final var eval = EQL.builder().print().query(CIPromo.ConditionAbstract)
-                        .where()
-                        .attribute(CIPromo.ConditionAbstract.PromotionLink).eq(promoInst)
-                        .select()
-                        .attribute(CIPromo.ConditionAbstract.ConditionContainer, CIPromo.ConditionAbstract.Note,
-                                        CIPromo.ConditionAbstract.Int1, CIPromo.ConditionAbstract.Decimal1,
-                                        CIPromo.ConditionAbstract.Boolean1, CIPromo.ConditionAbstract.String1,
-                                        CIPromo.ConditionAbstract.VarChar1)
-                        .evaluate();
-        while (eval.next()) {
-            final ICondition condition = evalCondition(eval);
-            final var container = eval.get(CIPromo.ConditionAbstract.ConditionContainer);
-            if (container.equals(ConditionContainer.SOURCE)) {
-                promotionBldr.addSourceCondition(condition);
-            } else {
-                promotionBldr.addTargetCondition(condition);
-            }
+        // read the version first, the index is always written before its version
+        final var version = getCache().get(evalCacheKey(CACHEPREFIX_VERSION));
+        var snapshot = retrieveSnapshot(version);
+        if (snapshot == null || !snapshot.isVersion(version)
+                        || getCache().containsKey(evalCacheKey(CACHEPREFIX_CLEAN))
+                        || getCache().containsKey(evalCacheKey(CACHEPREFIX_DIRTY))) {
+            snapshot = rebuildSnapshot(snapshot, version);
         }
+        return snapshot;
     }
 
-    protected ICondition evalCondition(final Evaluator eval)
+    /**
+     * Rebuilds the snapshot of the current company as a single flight: on this
+     * node only one thread per company loads, and the loading marker that is
+     * set atomically in the cache keeps other nodes from loading concurrently.
+     * Every other caller keeps working with the stale snapshot until the new
+     * one is published. Only if there is no snapshot at all a caller waits for
+     * the running load.
+     *
+     * @param stale the snapshot currently in use, may be <code>null</code>
+     * @param version the version currently stored in the cache
+     * @return the rebuilt snapshot, or the stale one if another load is running
+     * @throws EFapsException on error
+     */
+    protected PromotionSnapshot rebuildSnapshot(final PromotionSnapshot stale,
+                                                final String version)
         throws EFapsException
     {
-        ICondition condition = null;
-        eval.get(CIPromo.ConditionAbstract.ConditionContainer);
-        if (InstanceUtils.isType(eval.inst(), CIPromo.ProductsCondition)) {
-            final var ordinal = eval.<Integer>get(CIPromo.ConditionAbstract.Int1);
-            final var entryOperator = EntryOperator.values()[ordinal];
-            final var prodEval = EQL.builder().print().query(CIPromo.ProductsCondition2ProductAbstract).where()
-                            .attribute(CIPromo.ProductsCondition2ProductAbstract.FromLink).eq(eval.inst())
-                            .select()
-                            .linkto(CIPromo.ProductsCondition2ProductAbstract.ToLink).oid().as("prodOid")
-                            .evaluate();
-            final var prodOids = new HashSet<String>();
-            while (prodEval.next()) {
-                prodOids.add(prodEval.get("prodOid"));
-            }
-            condition = new ProductsCondition()
-                            .setPositionQuantity(eval.get(CIPromo.ConditionAbstract.Decimal1))
-                            .setEntryOperator(EnumUtils.getEnum(
-                                            org.efaps.promotionengine.condition.EntryOperator.class,
-                                            entryOperator.name()))
-                            .setAllowTargetSameAsSource(BooleanUtils
-                                            .toBoolean(eval.<Boolean>get(CIPromo.ConditionAbstract.Boolean1)))
-                            .setProducts(prodOids)
-                            .setNote(eval.get(CIPromo.ConditionAbstract.Note));
-        } else if (InstanceUtils.isType(eval.inst(), CIPromo.ProductFamilyCondition)) {
-            final var ordinal = eval.<Integer>get(CIPromo.ConditionAbstract.Int1);
-            final var entryOperator = EntryOperator.values()[ordinal];
-            final var familyEval = EQL.builder().print().query(CIPromo.ProductFamilyCondition2ProductFamilyAbstract)
-                            .where()
-                            .attribute(CIPromo.ProductFamilyCondition2ProductFamilyAbstract.FromLink)
-                            .eq(eval.inst())
-                            .select()
-                            .linkto(CIPromo.ProductFamilyCondition2ProductFamilyAbstract.ToLink)
-                            .instance().as("familyInst")
-                            .evaluate();
-            final var entries = new ArrayList<ProductFamilyConditionEntry>();
-            while (familyEval.next()) {
-                final Instance familyInst = familyEval.get("familyInst");
-                final var entry = new ProductFamilyConditionEntry().setProductFamilyOid(familyInst.getOid());
-                entries.add(entry);
-                final var prodEval = EQL.builder().print().query(CIProducts.ProductAbstract)
-                                .where()
-                                .attribute(CIProducts.ProductAbstract.ProductFamilyLink).eq(familyInst)
-                                .select()
-                                .oid()
-                                .evaluate();
-                while (prodEval.next()) {
-                    entry.addProduct(prodEval.inst().getOid());
-                }
+        final var companyId = Context.getThreadContext().getCompany().getId();
+        final var loadingKey = evalCacheKey(CACHEPREFIX_LOADING);
+        final var token = UUID.randomUUID().toString();
+        final var slot = new SingleFlight.Slot()
+        {
 
+            @Override
+            public boolean acquire()
+            {
+                return getCache().putIfAbsent(loadingKey, token, LOADING_TIMEOUT, TimeUnit.MINUTES) == null;
             }
-            condition = new ProductFamilyCondition()
-                            .setEntryOperator(EnumUtils.getEnum(
-                                            org.efaps.promotionengine.condition.EntryOperator.class,
-                                            entryOperator.name()))
-                            .setAllowTargetSameAsSource(BooleanUtils
-                                            .toBoolean(eval.<Boolean>get(CIPromo.ConditionAbstract.Boolean1)))
-                            .setEntries(entries)
-                            .setNote(eval.get(CIPromo.ConditionAbstract.Note));
-        } else if (InstanceUtils.isType(eval.inst(), CIPromo.StoreCondition)) {
-            final var ordinal = eval.<Integer>get(CIPromo.ConditionAbstract.Int1);
-            final var entryOperator = EntryOperator.values()[ordinal];
-            final var backendEval = EQL.builder().print().query(CIPromo.StoreCondition2POSBackend)
-                            .where()
-                            .attribute(CIPromo.StoreCondition2POSBackend.FromLink)
-                            .eq(eval.inst())
-                            .select()
-                            .linkto(CIPromo.StoreCondition2POSBackend.ToLink)
-                            .attribute("Identifier").as("backendIdentifier")
-                            .evaluate();
 
-            condition = new StoreCondition()
-                            .setEntryOperator(EnumUtils.getEnum(
-                                            org.efaps.promotionengine.condition.EntryOperator.class,
-                                            entryOperator.name()))
-                            .setNote(eval.get(CIPromo.ConditionAbstract.Note));
-            while (backendEval.next()) {
-                final String backendIdentifier = backendEval.get("backendIdentifier");
-                ((StoreCondition) condition).addIdentifier(backendIdentifier);
+            @Override
+            public void release()
+            {
+                getCache().remove(loadingKey, token);
             }
-        } else if (InstanceUtils.isType(eval.inst(), CIPromo.ProductsEQLCondition)) {
-            final var ordinal = eval.<Integer>get(CIPromo.ConditionAbstract.Int1);
-            final var entryOperator = EntryOperator.values()[ordinal];
-            final var prodOids = evalProductOids4EQL(eval.inst());
-            condition = new ProductsCondition()
-                            .setPositionQuantity(eval.get(CIPromo.ConditionAbstract.Decimal1))
-                            .setEntryOperator(EnumUtils.getEnum(
-                                            org.efaps.promotionengine.condition.EntryOperator.class,
-                                            entryOperator.name()))
-                            .setAllowTargetSameAsSource(BooleanUtils
-                                            .toBoolean(eval.<Boolean>get(CIPromo.ConditionAbstract.Boolean1)))
-                            .setProducts(prodOids)
-                            .setNote(eval.get(CIPromo.ConditionAbstract.Note));
-        } else if (InstanceUtils.isType(eval.inst(), CIPromo.DateCondition)) {
-            condition = new DateCondition().setNote(eval.get(CIPromo.ConditionAbstract.Note));
-            final var entriesEval = EQL.builder().print().query(CIPromo.DateConditionEntry)
+        };
+        return LOADERS.run(companyId, stale, slot,
+                        owner -> loadSnapshot(companyId, owner, stale != null && stale.isVersion(version)
+                                        ? stale : null));
+    }
+
+    /**
+     * Loads the active promotions from the database and publishes them. If the
+     * given snapshot is current and only single promotions were invalidated,
+     * just these are reloaded and patched into it. Only the owner of the
+     * loading marker writes to the cache: the entries of the promotions that
+     * changed, the index and at last the version. Any other caller gets a node
+     * local snapshot that is replaced by the cached one as soon as the owner
+     * finished, only the history of its version is written.
+     */
+    private PromotionSnapshot loadSnapshot(final Long companyId,
+                                           final boolean owner,
+                                           final PromotionSnapshot current)
+        throws EFapsException
+    {
+        final var stamp = PromotionSnapshot.nextStamp();
+        final var cleanRequired = getCache().containsKey(evalCacheKey(CACHEPREFIX_CLEAN));
+        // read before loading, so that invalidations during the load are not lost
+        final var dirtyOids = getDirty();
+        if (owner) {
+            getCache().remove(evalCacheKey(CACHEPREFIX_CLEAN));
+        }
+        final var fullLoad = current == null || cleanRequired;
+        final List<Promotion> promotions;
+        if (fullLoad) {
+            final Print promoEval = EQL.builder().print().query(CIPromo.PromotionAbstract)
                             .where()
-                            .attribute(CIPromo.DateConditionEntry.DateConditionLink)
-                            .eq(eval.inst())
-                            .select()
-                            .attribute(CIPromo.DateConditionEntry.StartDate, CIPromo.DateConditionEntry.EndDate)
-                            .evaluate();
-            while (entriesEval.next()) {
-                final LocalDate startDate = entriesEval.get(CIPromo.DateConditionEntry.StartDate);
-                final LocalDate endDate = entriesEval.get(CIPromo.DateConditionEntry.EndDate);
-                ((DateCondition) condition).addRange(startDate, endDate);
+                            .attribute(CIPromo.PromotionAbstract.StatusAbstract)
+                            .eq(CIPromo.PromotionStatus.Active)
+                            .select();
+            promotions = evalPromotions(promoEval);
+        } else {
+            promotions = patchPromotions(current.getPromotions(), dirtyOids);
+        }
+        final var previousIndex = parseIndex(getCache().get(evalCacheKey(CACHEPREFIX)));
+        final Map<String, String> index = new LinkedHashMap<>();
+        for (final var promotion : promotions) {
+            final var oid = promotion.getOid();
+            String promotionVersion = fullLoad || dirtyOids.contains(oid) ? null : current.getPromotionVersion(oid);
+            byte[] payload = null;
+            if (promotionVersion == null) {
+                payload = encode(promotion);
+                promotionVersion = PromotionCodec.evalVersion(payload);
             }
-        } else if (InstanceUtils.isType(eval.inst(), CIPromo.TimeCondition)) {
-            condition = new TimeCondition().setNote(eval.get(CIPromo.ConditionAbstract.Note));
-            final var entriesEval = EQL.builder().print().query(CIPromo.TimeConditionEntry)
-                            .where()
-                            .attribute(CIPromo.TimeConditionEntry.TimeConditionLink)
-                            .eq(eval.inst())
-                            .select()
-                            .attribute(CIPromo.TimeConditionEntry.StartTime, CIPromo.TimeConditionEntry.EndTime)
-                            .evaluate();
-            while (entriesEval.next()) {
-                final LocalTime startTime = entriesEval.get(CIPromo.TimeConditionEntry.StartTime);
-                final LocalTime endTime = entriesEval.get(CIPromo.TimeConditionEntry.EndTime);
-                ((TimeCondition) condition).addRange(
-                                startTime.atOffset(
-                                                OffsetTime.now(Context.getThreadContext().getZoneId()).getOffset()),
-                                endTime.atOffset(OffsetTime.now(Context.getThreadContext().getZoneId())
-                                                .getOffset()));
+            // invalidated or evicted entries must be written even if unchanged
+            if (owner && (fullLoad || dirtyOids.contains(oid) || !promotionVersion.equals(previousIndex.get(oid))
+                            || !getDataCache().containsKey(oid))) {
+                getDataCache().put(oid, payload == null ? encode(promotion) : payload);
             }
-        } else if (InstanceUtils.isType(eval.inst(), CIPromo.DocTotalCondition)) {
-            final var ordinal = eval.<Integer>get(CIPromo.ConditionAbstract.Int1);
-            final var operator = Operator.values()[ordinal];
-            condition = new DocTotalCondition()
-                            .setTotal(eval.get(CIPromo.ConditionAbstract.Decimal1))
-                            .setOperator(operator)
-                            .setNote(eval.get(CIPromo.ConditionAbstract.Note));
-        } else if (InstanceUtils.isType(eval.inst(), CIPromo.ProductTotalCondition)) {
-            final var ordinal = eval.<Integer>get(CIPromo.ConditionAbstract.Int1);
-            final var operator = Operator.values()[ordinal];
-            condition = new ProductTotalCondition()
-                            .setTotal(eval.get(CIPromo.ConditionAbstract.Decimal1))
-                            .setOperator(operator)
-                            .setNote(eval.get(CIPromo.ConditionAbstract.Note));
-
-            final var prodEval = EQL.builder().print().query(CIPromo.ProductTotalCondition2ProductAbstract).where()
-                            .attribute(CIPromo.ProductTotalCondition2ProductAbstract.FromLink).eq(eval.inst())
-                            .select()
-                            .linkto(CIPromo.ProductTotalCondition2ProductAbstract.ToLink).oid().as("prodOid")
-                            .evaluate();
-            new ArrayList<String>();
-            while (prodEval.next()) {
-                ((ProductTotalCondition) condition).addProduct(prodEval.get("prodOid"));
+            index.put(oid, promotionVersion);
+        }
+        final var version = UUID.randomUUID().toString();
+        if (owner) {
+            for (final var oid : previousIndex.keySet()) {
+                if (!index.containsKey(oid)) {
+                    getDataCache().remove(oid);
+                }
             }
-        } else if (InstanceUtils.isType(eval.inst(), CIPromo.MaxCondition)) {
-            final var max = eval.<Integer>get(CIPromo.ConditionAbstract.Int1);
-            condition = new MaxCondition()
-                            .setMax(max)
-                            .setNote(eval.get(CIPromo.ConditionAbstract.Note));
-        } else if (InstanceUtils.isType(eval.inst(), CIPromo.StackCondition)) {
-            condition = new StackCondition()
-                            .setNote(eval.get(CIPromo.StackCondition.Note));
-        } else if (InstanceUtils.isType(eval.inst(), CIPromo.OrCondition)) {
-            final var childEval = EQL.builder().print().query(CIPromo.ConditionAbstract)
+            getCache().put(evalCacheKey(CACHEPREFIX), formatIndex(index));
+        }
+        // node local versions are handed to clients as well, so every version gets its history
+        getCache().put(evalCacheKey(CACHEPREFIX_HISTORY) + "-" + version, formatIndex(index), HISTORY_LIFESPAN,
+                        TimeUnit.HOURS);
+        if (owner) {
+            getCache().put(evalCacheKey(CACHEPREFIX_VERSION), version);
+            consumeDirty(dirtyOids);
+        }
+        return PromotionSnapshot.publish(companyId, stamp, version, promotions, index);
+    }
+
+    /**
+     * Replaces the invalidated promotions with their current state. Promotions
+     * that are not active anymore are dropped, newly activated ones appended.
+     */
+    protected List<Promotion> patchPromotions(final List<Promotion> promotions,
+                                              final Set<String> dirtyOids)
+        throws EFapsException
+    {
+        LOG.info("Patching promotions: {}", dirtyOids);
+        final var reloaded = new LinkedHashMap<String, Promotion>();
+        if (!dirtyOids.isEmpty()) {
+            final var ids = dirtyOids.stream()
+                            .map(Instance::get)
+                            .filter(InstanceUtils::isValid)
+                            .map(Instance::getId)
+                            .toArray();
+            final Print promoEval = EQL.builder().print().query(CIPromo.PromotionAbstract)
                             .where()
-                            .attribute(CIPromo.ConditionAbstract.ParentConditionLink).eq(eval.inst())
-                            .select()
-                            .attribute(CIPromo.ConditionAbstract.ConditionContainer, CIPromo.ConditionAbstract.Note,
-                                            CIPromo.ConditionAbstract.Int1, CIPromo.ConditionAbstract.Decimal1,
-                                            CIPromo.ConditionAbstract.Boolean1)
-                            .evaluate();
-            condition = new OrCondition()
-                            .setNote(eval.get(CIPromo.ConditionAbstract.Note));
-            while (childEval.next()) {
-                final ICondition childCondition = evalCondition(childEval);
-                ((OrCondition) condition).addCondition(childCondition);
+                            .attribute(CIPromo.PromotionAbstract.ID).in(ids)
+                            .and()
+                            .attribute(CIPromo.PromotionAbstract.StatusAbstract)
+                            .eq(CIPromo.PromotionStatus.Active)
+                            .select();
+            for (final var promotion : evalPromotions(promoEval)) {
+                reloaded.put(promotion.getOid(), promotion);
             }
-        } else if (InstanceUtils.isType(eval.inst(), CIPromo.BINCondition)) {
-            condition = new BINCondition()
-                            .setNote(eval.get(CIPromo.BINCondition.Note));
-            final String values = eval.get(CIPromo.ConditionAbstract.VarChar1);
-            for (final var value: values.split("\n")) {
-                ((BINCondition) condition).addIdentifier(value);
+        }
+        final List<Promotion> ret = new ArrayList<>();
+        for (final var promotion : promotions) {
+            if (dirtyOids.contains(promotion.getOid())) {
+                final var replacement = reloaded.remove(promotion.getOid());
+                if (replacement != null) {
+                    ret.add(replacement);
+                }
+            } else {
+                ret.add(promotion);
             }
-        } else if (InstanceUtils.isType(eval.inst(), CIPromo.BINRegexCondition)) {
-            condition = new BINRegexCondition()
-                            .setRegex(eval.get(CIPromo.ConditionAbstract.String1))
-                            .setNote(eval.get(CIPromo.BINRegexCondition.Note));
         }
-        return condition;
+        ret.addAll(reloaded.values());
+        return ret;
+    }
+
+    protected List<Promotion> evalPromotions(final Print print)
+        throws EFapsException
+    {
+        return new PromotionLoader().load(print);
     }
 
     public Instance registerPromotionInfoForDoc(final String documentOid,
                                                 final PromotionInfoDto dto,
                                                 final Collection<String> promotions)
         throws EFapsException
+    {
+        return registerPromotionInfoForDoc(documentOid, dto, promotions, null);
+    }
+
+    /**
+     * @param documentOid oid of the document
+     * @param dto promotion info
+     * @param promotions serialized promotions, if <code>null</code> they are
+     *            taken from the cache
+     * @param positions position instances by position number as known by the
+     *            caller, if <code>null</code> they are read from the database
+     * @return instance of the last relation of the document
+     * @throws EFapsException on error
+     */
+    public Instance registerPromotionInfoForDoc(final String documentOid,
+                                                final PromotionInfoDto dto,
+                                                final Collection<String> promotions,
+                                                final Map<Integer, Instance> positions)
+        throws EFapsException
     {
         Instance ret = null;
         final var docInst = Instance.get(documentOid);
@@ -498,21 +647,22 @@ public class PromotionService
                 }
                 final var promoInfo = objectMapper.writeValueAsString(dto);
 
+                // every promotion is serialized only once per document
+                final Map<String, String> oid2json = new HashMap<>();
+                for (final var entry : oid2promotion.entrySet()) {
+                    oid2json.put(entry.getKey(), objectMapper.writeValueAsString(entry.getValue()));
+                }
+                // PROMO is not null, promotions that could not be resolved get all given ones
+                final var allPromotions = promotions == null ? "" : String.join("\n", promotions);
                 for (final var promotionOid : dto.getPromotionOids()) {
                     final var promoInst = Instance.get(promotionOid);
                     if (InstanceUtils.isKindOf(promoInst, CIPromo.PromotionAbstract)) {
-
-                        final String promotion;
-                        if (oid2promotion.containsKey(promotionOid)) {
-                            promotion = objectMapper.writeValueAsString(oid2promotion.get(promotionOid));
-                        } else {
-                            promotion = promotions.stream().collect(Collectors.joining("\n"));
-                        }
                         ret = EQL.builder().insert(ciRelDocType)
                                         .set(CIPromo.Promotion2DocumentAbstract.FromLink, promoInst)
                                         .set(CIPromo.Promotion2DocumentAbstract.ToLinkAbstract, docInst)
                                         .set(CIPromo.Promotion2DocumentAbstract.PromoInfo, promoInfo)
-                                        .set(CIPromo.Promotion2DocumentAbstract.Promotion, promotion)
+                                        .set(CIPromo.Promotion2DocumentAbstract.Promotion,
+                                                        oid2json.getOrDefault(promotionOid, allPromotions))
                                         .set(CIPromo.Promotion2DocumentAbstract.NetTotalDiscount,
                                                         dto.getNetTotalDiscount())
                                         .set(CIPromo.Promotion2DocumentAbstract.CrossTotalDiscount,
@@ -521,27 +671,48 @@ public class PromotionService
                     }
                 }
 
-                final var posEval = EQL.builder().print().query(CISales.PositionAbstract)
-                                .where()
-                                .attribute(CISales.PositionAbstract.DocumentAbstractLink).eq(docInst)
-                                .select()
-                                .orderBy(CISales.PositionAbstract.PositionNumber)
-                                .attribute(CISales.PositionAbstract.PositionNumber)
-                                .evaluate();
-                while (posEval.next()) {
-                    final int posIndex = posEval.get(CISales.PositionAbstract.PositionNumber);
-                    for (final var detail : dto.findDetailsForPosition(posIndex)) {
-                        final var promoInst = Instance.get(detail.getPromotionOid());
-                        String promotion = null;
-                        if (oid2promotion.containsKey(promoInst.getOid())) {
-                            promotion = objectMapper.writeValueAsString(oid2promotion.get(promoInst.getOid()));
+                // group the details by position and validate each promotion only once
+                final Map<Integer, List<PromotionDetailDto>> index2details = new HashMap<>();
+                final Map<String, Instance> oid2promoInst = new HashMap<>();
+                if (dto.getDetails() != null) {
+                    for (final var detail : dto.getDetails()) {
+                        index2details.computeIfAbsent(detail.getPositionIndex(), key -> new ArrayList<>())
+                                        .add(detail);
+                        oid2promoInst.computeIfAbsent(detail.getPromotionOid(), oid -> {
+                            final var promoInst = Instance.get(oid);
+                            return InstanceUtils.isKindOf(promoInst, CIPromo.PromotionAbstract) ? promoInst : null;
+                        });
+                    }
+                }
+                final Map<Integer, Instance> index2position;
+                if (positions == null) {
+                    index2position = new TreeMap<>();
+                    if (!index2details.isEmpty()) {
+                        final var posEval = EQL.builder().print().query(CISales.PositionAbstract)
+                                        .where()
+                                        .attribute(CISales.PositionAbstract.DocumentAbstractLink).eq(docInst)
+                                        .select()
+                                        .attribute(CISales.PositionAbstract.PositionNumber)
+                                        .evaluate();
+                        while (posEval.next()) {
+                            index2position.put(posEval.get(CISales.PositionAbstract.PositionNumber), posEval.inst());
                         }
-                        if (InstanceUtils.isKindOf(promoInst, CIPromo.PromotionAbstract)) {
+                    }
+                } else {
+                    index2position = new TreeMap<>(positions);
+                }
+                for (final var position : index2position.entrySet()) {
+                    for (final var detail : index2details.getOrDefault(position.getKey(), List.of())) {
+                        final var promoInst = oid2promoInst.get(detail.getPromotionOid());
+                        if (promoInst != null) {
                             EQL.builder().insert(ciRelPosType)
                                             .set(CIPromo.Promotion2PositionAbstract.FromLink, promoInst)
-                                            .set(CIPromo.Promotion2PositionAbstract.ToLinkAbstract, posEval.inst())
+                                            .set(CIPromo.Promotion2PositionAbstract.ToLinkAbstract,
+                                                            position.getValue())
                                             .set(CIPromo.Promotion2PositionAbstract.PromoInfo, promoInfo)
-                                            .set(CIPromo.Promotion2PositionAbstract.Promotion, promotion)
+                                            .set(CIPromo.Promotion2PositionAbstract.Promotion,
+                                                            oid2json.getOrDefault(promoInst.getOid(),
+                                                                            allPromotions))
                                             .set(CIPromo.Promotion2PositionAbstract.NetUnitDiscount,
                                                             detail.getNetUnitDiscount())
                                             .set(CIPromo.Promotion2PositionAbstract.NetDiscount,
@@ -570,12 +741,6 @@ public class PromotionService
                         .evaluate();
         final var operator = condEval.<LogicalOperator>get(CIPromo.ProductsEQLCondition.LogicalOperator);
 
-        final var prodOids = new HashSet<String>();
-        final var properties = Promotions.EQL_ATTRDEF.get();
-        final var types = PropertiesUtil.analyseProperty(properties, "Type", 0);
-        LOG.info("  types: {}", types);
-        final var selects = PropertiesUtil.analyseProperty(properties, "Select", 0);
-        LOG.info("  selects: {}", selects);
         final var eqlEval = EQL.builder().print()
                         .query(CIPromo.EQLAttributeDefinition)
                         .where()
@@ -584,14 +749,36 @@ public class PromotionService
                         .attribute(CIPromo.EQLAttributeDefinition.AttributeDefinitionType,
                                         CIPromo.EQLAttributeDefinition.AttributeDefinitionValue)
                         .evaluate();
-        final var wheres = new ArrayList<Pair<String, Long>>();
-
+        final var definitions = new ArrayList<Pair<Long, Long>>();
         while (eqlEval.next()) {
-            final Long typeId = eqlEval.get(CIPromo.EQLAttributeDefinition.AttributeDefinitionType);
-            final Long valueId = eqlEval.get(CIPromo.EQLAttributeDefinition.AttributeDefinitionValue);
-            final var type = Type.get(typeId);
+            definitions.add(Pair.of(eqlEval.get(CIPromo.EQLAttributeDefinition.AttributeDefinitionType),
+                            eqlEval.get(CIPromo.EQLAttributeDefinition.AttributeDefinitionValue)));
+        }
+        return evalProductOids4Stmt(evalEQLStmt(operator, definitions));
+    }
+
+    /**
+     * Builds the statement for the products of a ProductsEQLCondition.
+     *
+     * @param operator operator joining the definitions
+     * @param definitions pairs of attribute definition type id and value id
+     * @return the statement
+     * @throws EFapsException on error
+     */
+    protected static String evalEQLStmt(final LogicalOperator operator,
+                                        final List<Pair<Long, Long>> definitions)
+        throws EFapsException
+    {
+        final var properties = Promotions.EQL_ATTRDEF.get();
+        final var types = PropertiesUtil.analyseProperty(properties, "Type", 0);
+        LOG.debug("  types: {}", types);
+        final var selects = PropertiesUtil.analyseProperty(properties, "Select", 0);
+        LOG.debug("  selects: {}", selects);
+        final var wheres = new ArrayList<Pair<String, Long>>();
+        for (final var definition : definitions) {
+            final var type = Type.get(definition.getLeft());
             if (type != null) {
-                LOG.info("  checking for type: {} with value: {}", type.getName(), valueId);
+                LOG.debug("  checking for type: {} with value: {}", type.getName(), definition.getRight());
                 final var keyOpt = types
                                 .entrySet()
                                 .stream()
@@ -600,11 +787,11 @@ public class PromotionService
                                 .map(Map.Entry::getKey)
                                 .findFirst();
                 if (keyOpt.isPresent()) {
-                    wheres.add(Pair.of(selects.get(keyOpt.get()), valueId));
+                    wheres.add(Pair.of(selects.get(keyOpt.get()), definition.getRight()));
                 }
             }
         }
-        LOG.info("  wheres: {}", wheres);
+        LOG.debug("  wheres: {}", wheres);
         final var bldr = new StringBuilder().append("print query type ")
                         .append(CIProducts.ProductStandart.getType().getName()).append(", ")
                         .append(CIProducts.ProductService.getType().getName()).append(", ")
@@ -629,72 +816,204 @@ public class PromotionService
         }
         bldr.append(" Active == true select oid");
         LOG.info("  stmt: {}", bldr);
-        final IPrintQueryStatement stmt = (IPrintQueryStatement) EQL.parse(bldr);
-        final var eval = PrintStmt.get(stmt).evaluate();
-        while (eval.next()) {
-            prodOids.add(eval.inst().getOid());
+        return bldr.toString();
+    }
+
+    /**
+     * The statement contains everything the result depends on (definitions,
+     * operator and configured selects), so the products are cached by its
+     * hash and a changed definition leads to a new entry. Classifications of
+     * products are not tracked, the entries expire after
+     * {@link #EQL_LIFESPAN} minutes and are removed by a full clean.
+     */
+    protected static Set<String> evalProductOids4Stmt(final String stmtStr)
+        throws EFapsException
+    {
+        final var key = Context.getThreadContext().getCompany().getId() + "-"
+                        + PromotionCodec.evalVersion(stmtStr.getBytes(StandardCharsets.UTF_8));
+        final var cached = getEQLCache().get(key);
+        final Set<String> prodOids;
+        if (cached == null) {
+            prodOids = new HashSet<>();
+            final IPrintQueryStatement stmt = (IPrintQueryStatement) EQL.parse(stmtStr);
+            final var eval = PrintStmt.get(stmt).evaluate();
+            while (eval.next()) {
+                prodOids.add(eval.inst().getOid());
+            }
+            getEQLCache().put(key, String.join("\n", prodOids), EQL_LIFESPAN, TimeUnit.MINUTES);
+        } else {
+            LOG.info("  using cached products");
+            prodOids = splitOids(cached);
         }
         return prodOids;
     }
 
-    private List<Promotion> retrievePromotions()
-        throws CacheReloadException, EFapsException
+    /**
+     * Returns the in-process snapshot as long as its version matches the one
+     * stored in the cache. If another node published a new version, the index
+     * is read and only the entries of promotions whose version differs from
+     * the one in the snapshot are fetched and deserialized.
+     */
+    private PromotionSnapshot retrieveSnapshot(final String version)
+        throws EFapsException
     {
-
-        final var cleanRequired = getCache().containsKey(evalCacheKey(CACHEPREFIX_CLEAN));
-        final var loading = getCache().containsKey(evalCacheKey(CACHEPREFIX_LOADING));
-        final var cacheKey = evalCacheKey(CACHEPREFIX);
-        LOG.info("Retreiving Promotions for: {}, cleanRequired: {}, isLoading: {}", cacheKey, cleanRequired, loading);
-        if (cleanRequired && !loading) {
-            getCache().remove(evalCacheKey(CACHEPREFIX_CLEAN));
-            return null;
+        final var companyId = Context.getThreadContext().getCompany().getId();
+        var snapshot = PromotionSnapshot.get(companyId);
+        if (version != null && (snapshot == null || !snapshot.isVersion(version))) {
+            final var stamp = PromotionSnapshot.nextStamp();
+            final var index = parseIndex(getCache().get(evalCacheKey(CACHEPREFIX)));
+            final List<Promotion> promotions = new ArrayList<>();
+            boolean complete = true;
+            int fetched = 0;
+            for (final var entry : index.entrySet()) {
+                Promotion promotion = null;
+                if (snapshot != null && entry.getValue().equals(snapshot.getPromotionVersion(entry.getKey()))) {
+                    promotion = snapshot.getPromotion(entry.getKey());
+                } else {
+                    promotion = loadPromotion(entry.getKey());
+                    fetched++;
+                }
+                if (promotion == null) {
+                    LOG.info("Missing cache entry for promotion: {}", entry.getKey());
+                    complete = false;
+                    break;
+                }
+                promotions.add(promotion);
+            }
+            if (complete) {
+                LOG.info("Fetched {} of {} promotions for version: {}", fetched, index.size(), version);
+                snapshot = PromotionSnapshot.publish(companyId, stamp, version, promotions, index);
+            }
         }
-        return loadPromotions(cacheKey);
+        return snapshot;
     }
 
-    private List<Promotion> loadPromotions(final String cacheKey)
+    private Promotion loadPromotion(final String oid)
     {
-        List<Promotion> ret = null;
-        final var json = getCache().get(cacheKey);
-        if (json != null) {
+        Promotion ret = null;
+        final var payload = getDataCache().get(oid);
+        if (payload != null) {
             try {
-                final var objectMapper = SerializationUtil.getObjectMapper();
-                ret = objectMapper.readValue(json, objectMapper.getTypeFactory()
-                                .constructCollectionType(List.class, Promotion.class));
-            } catch (final JsonProcessingException e) {
+                final var promotions = PromotionCodec.decode(payload);
+                ret = promotions == null || promotions.isEmpty() ? null : promotions.get(0);
+            } catch (final IOException e) {
                 LOG.error("Catched", e);
             }
         }
-        LOG.info("... found {} promotions for: {}", ret == null ? 0 : ret.size(), cacheKey);
         return ret;
     }
 
-    private void cachePromotions(final List<Promotion> promotions,
-                                 final String cacheKey)
-        throws CacheReloadException, EFapsException
+    private byte[] encode(final Promotion promotion)
+        throws EFapsException
     {
-        cachePromotions(promotions, cacheKey, 0, null);
+        try {
+            return PromotionCodec.encode(List.of(promotion), Promotions.CACHE_JSON.get());
+        } catch (final IOException e) {
+            throw new EFapsException(PromotionService.class, "encode", e);
+        }
     }
 
-    private void cachePromotions(final List<Promotion> promotions,
-                                 final String cacheKey,
-                                 long lifespan,
-                                 TimeUnit unit)
-        throws CacheReloadException, EFapsException
+    /**
+     * Entries of active promotions are managed by the loads and kept without
+     * lifespan, entries of any other promotion expire after some minutes.
+     */
+    private void cachePromotion(final Promotion promotion)
+        throws EFapsException
     {
-        try {
-            final var json = SerializationUtil.getObjectMapper().writeValueAsString(promotions);
-            LOG.info("Caching Promotions for {}", cacheKey);
-            if (unit != null) {
-                getCache().put(cacheKey, json, lifespan, unit);
+        final var oid = promotion.getOid();
+        if (parseIndex(getCache().get(evalCacheKey(CACHEPREFIX))).containsKey(oid)) {
+            getDataCache().put(oid, encode(promotion));
+        } else {
+            getDataCache().put(oid, encode(promotion), 10, TimeUnit.MINUTES);
+        }
+    }
+
+    /**
+     * The index lists the oids of the active promotions with the version of
+     * their cache entry, one "oid=version" per line in the order of the list.
+     */
+    private static Map<String, String> parseIndex(final String value)
+    {
+        final Map<String, String> ret = new LinkedHashMap<>();
+        if (value != null) {
+            for (final var line : value.split("\n")) {
+                final var pos = line.indexOf('=');
+                if (pos > 0) {
+                    ret.put(line.substring(0, pos), line.substring(pos + 1));
+                }
+            }
+        }
+        return ret;
+    }
+
+    private static String formatIndex(final Map<String, String> index)
+    {
+        return index.entrySet().stream()
+                        .map(entry -> entry.getKey() + "=" + entry.getValue())
+                        .collect(Collectors.joining("\n"));
+    }
+
+    /**
+     * Adds the oid to the set of invalidated promotions. The set is stored as
+     * one entry and updated with compare-and-set, so concurrent triggers on
+     * different nodes do not overwrite each other.
+     */
+    private void markDirty(final String promotionOid)
+        throws EFapsException
+    {
+        final var key = evalCacheKey(CACHEPREFIX_DIRTY);
+        boolean done = false;
+        while (!done) {
+            final var current = getCache().get(key);
+            if (current == null) {
+                done = getCache().putIfAbsent(key, promotionOid) == null;
+            } else if (splitOids(current).contains(promotionOid)) {
+                done = true;
             } else {
-                getCache().put(cacheKey, json);
+                done = getCache().replace(key, current, current + "\n" + promotionOid);
             }
-        } catch (final JsonProcessingException e) {
-            LOG.error("Catched", e);
         }
     }
 
+    private Set<String> getDirty()
+        throws EFapsException
+    {
+        return splitOids(getCache().get(evalCacheKey(CACHEPREFIX_DIRTY)));
+    }
+
+    private void consumeDirty(final Set<String> consumed)
+        throws EFapsException
+    {
+        if (!consumed.isEmpty()) {
+            final var key = evalCacheKey(CACHEPREFIX_DIRTY);
+            boolean done = false;
+            while (!done) {
+                final var current = getCache().get(key);
+                if (current == null) {
+                    done = true;
+                } else {
+                    final var remaining = splitOids(current);
+                    remaining.removeAll(consumed);
+                    done = remaining.isEmpty() ? getCache().remove(key, current)
+                                    : getCache().replace(key, current, String.join("\n", remaining));
+                }
+            }
+        }
+    }
+
+    private static Set<String> splitOids(final String value)
+    {
+        final Set<String> ret = new LinkedHashSet<>();
+        if (value != null) {
+            for (final var oid : value.split("\n")) {
+                if (!oid.isBlank()) {
+                    ret.add(oid);
+                }
+            }
+        }
+        return ret;
+    }
+
     private static String evalCacheKey(final String prefix)
         throws EFapsException
     {
@@ -710,37 +1029,70 @@ public class PromotionService
         return InfinispanCache.get().<String, String>getCache(CACHENAME);
     }
 
+    /**
+     * @return cache holding the encoded promotions, see {@link PromotionCodec}
+     */
+    private static Cache<String, byte[]> getDataCache()
+    {
+        if (!InfinispanCache.get().exists(DATACACHENAME)) {
+            InfinispanCache.get().initCache(DATACACHENAME);
+        }
+        return InfinispanCache.get().<String, byte[]>getCache(DATACACHENAME);
+    }
+
+    /**
+     * @return cache holding the product oids resolved for EQL statements
+     */
+    private static Cache<String, String> getEQLCache()
+    {
+        if (!InfinispanCache.get().exists(EQLCACHENAME)) {
+            InfinispanCache.get().initCache(EQLCACHENAME);
+        }
+        return InfinispanCache.get().<String, String>getCache(EQLCACHENAME);
+    }
+
     @Override
     public void registerPromotionInfo(final PromotionInfoDto promotionInfoDto,
                                       final String documentOid)
         throws EFapsBaseException
     {
-        registerPromotionInfoForDoc(documentOid, promotionInfoDto, null);
+        if (Promotions.INFO_ASYNC.get()) {
+            new PromotionInfoQueue().enqueue(documentOid, promotionInfoDto);
+        } else {
+            registerPromotionInfoForDoc(documentOid, promotionInfoDto, null);
+        }
     }
 
+    /**
+     * Info still waiting in the {@link PromotionInfoQueue} is newer than the
+     * registered one and returned instead.
+     */
     public PromotionInfoDto getPromotionInfoForDoc(final Instance documentInstance)
         throws EFapsException
     {
         PromotionInfoDto ret = null;
-        final var promoEval = EQL.builder().print().query(CIPromo.Promotion2DocumentAbstract)
-                        .where()
-                        .attribute(CIPromo.Promotion2DocumentAbstract.ToLinkAbstract).eq(documentInstance)
-                        .select()
-                        .attribute(CIPromo.Promotion2DocumentAbstract.PromoInfo)
-                        .limit(1)
-                        .evaluate();
-        if (promoEval.next()) {
-            final var objectMapper = SerializationUtil.getObjectMapper();
-            final String promoInfoStr = promoEval.get(CIPromo.Promotion2DocumentAbstract.PromoInfo);
-            if (promoInfoStr != null) {
-                try {
-                    ret = objectMapper.readValue(promoInfoStr, PromotionInfoDto.class);
-                } catch (final JsonProcessingException e) {
-                    LOG.error("Catched", e);
+        if (Promotions.INFO_ASYNC.get()) {
+            ret = new PromotionInfoQueue().getQueued(documentInstance.getOid());
+        }
+        if (ret == null) {
+            final var promoEval = EQL.builder().print().query(CIPromo.Promotion2DocumentAbstract)
+                            .where()
+                            .attribute(CIPromo.Promotion2DocumentAbstract.ToLinkAbstract).eq(documentInstance)
+                            .select()
+                            .attribute(CIPromo.Promotion2DocumentAbstract.PromoInfo)
+                            .limit(1)
+                            .evaluate();
+            if (promoEval.next()) {
+                final String promoInfoStr = promoEval.get(CIPromo.Promotion2DocumentAbstract.PromoInfo);
+                if (promoInfoStr != null) {
+                    try {
+                        ret = SerializationUtil.getObjectMapper().readValue(promoInfoStr, PromotionInfoDto.class);
+                    } catch (final JsonProcessingException e) {
+                        LOG.error("Catched", e);
+                    }
                 }
             }
         }
         return ret;
     }
-
 }
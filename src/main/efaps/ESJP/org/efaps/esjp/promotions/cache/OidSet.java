@@ -0,0 +1,296 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.esjp.promotions.cache;
+
+import java.lang.ref.WeakReference;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+
+import org.efaps.admin.program.esjp.EFapsApplication;
+import org.efaps.admin.program.esjp.EFapsUUID;
+
+/**
+ * Immutable set of oids held as sorted primitive ids per type id. A oid
+ * "typeId.id" costs 8 bytes instead of a String object, and a membership test
+ * parses the oid in place and does two binary searches without allocating.
+ * Sets with the same content are shared through {@link #intern(Collection)},
+ * so a product list used by several conditions is held only once.
+ */
+@EFapsUUID("f1b87e1f-c711-4aef-bafa-c4721fbe941f")
+@EFapsApplication("eFapsApp-Promotions")
+public final class OidSet
+    extends AbstractSet<String>
+{
+
+    /** Interned sets, weak so that sets no promotion uses anymore are released. */
+    private static final Map<OidSet, WeakReference<OidSet>> POOL = new WeakHashMap<>();
+
+    private final long[] typeIds;
+
+    private final long[][] ids;
+
+    private final int size;
+
+    private int hash;
+
+    private OidSet(final long[] typeIds,
+                   final long[][] ids)
+    {
+        this.typeIds = typeIds;
+        this.ids = ids;
+        int count = 0;
+        for (final var ids4Type : ids) {
+            count += ids4Type.length;
+        }
+        size = count;
+    }
+
+    @Override
+    public boolean contains(final Object obj)
+    {
+        boolean ret = false;
+        if (obj instanceof final String oid) {
+            final var pos = oid.indexOf('.');
+            if (pos > 0) {
+                final var typeId = parse(oid, 0, pos);
+                final var id = parse(oid, pos + 1, oid.length());
+                if (typeId >= 0 && id >= 0) {
+                    final var typeIdx = Arrays.binarySearch(typeIds, typeId);
+                    ret = typeIdx >= 0 && Arrays.binarySearch(ids[typeIdx], id) >= 0;
+                }
+            }
+        }
+        return ret;
+    }
+
+    @Override
+    public Iterator<String> iterator()
+    {
+        return new Iterator<>()
+        {
+
+            private int typeIdx;
+            private int idx;
+
+            @Override
+            public boolean hasNext()
+            {
+                while (typeIdx < ids.length && idx >= ids[typeIdx].length) {
+                    typeIdx++;
+                    idx = 0;
+                }
+                return typeIdx < ids.length;
+            }
+
+            @Override
+            public String next()
+            {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return typeIds[typeIdx] + "." + ids[typeIdx][idx++];
+            }
+        };
+    }
+
+    @Override
+    public int size()
+    {
+        return size;
+    }
+
+    @Override
+    public boolean equals(final Object obj)
+    {
+        final boolean ret;
+        if (this == obj) {
+            ret = true;
+        } else if (obj instanceof final OidSet other) {
+            ret = size == other.size && Arrays.equals(typeIds, other.typeIds)
+                            && Arrays.deepEquals(ids, other.ids);
+        } else {
+            ret = super.equals(obj);
+        }
+        return ret;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        // same as for any other set of strings, calculated once
+        if (hash == 0 && size > 0) {
+            hash = super.hashCode();
+        }
+        return hash;
+    }
+
+    /**
+     * @return the sorted type ids, not to be modified
+     */
+    long[] getTypeIds()
+    {
+        return typeIds;
+    }
+
+    /**
+     * @param typeIdx index of the type in {@link #getTypeIds()}
+     * @return the sorted ids of the type, not to be modified
+     */
+    long[] getIds(final int typeIdx)
+    {
+        return ids[typeIdx];
+    }
+
+    /**
+     * @param oid oid to be packed
+     * @return the oid packed into one long, -1 if it is not a oid or its ids
+     *         are too large to be packed
+     */
+    static long pack(final String oid)
+    {
+        long ret = -1;
+        final var pos = oid == null ? -1 : oid.indexOf('.');
+        if (pos > 0) {
+            ret = pack(parse(oid, 0, pos), parse(oid, pos + 1, oid.length()));
+        }
+        return ret;
+    }
+
+    /**
+     * The type id is held in the upper 23 bits, the id in the lower 40 bits.
+     *
+     * @param typeId type id
+     * @param id id
+     * @return the packed oid, -1 if one of the ids is too large to be packed
+     */
+    static long pack(final long typeId,
+                     final long id)
+    {
+        return typeId >= 0 && typeId < 1L << 23 && id >= 0 && id < 1L << 40 ? typeId << 40 | id : -1;
+    }
+
+    /**
+     * @param oids oids to be held
+     * @return the shared set with the given oids, or the given collection as
+     *         a set if one of the values is not a oid
+     */
+    public static Set<String> intern(final Collection<String> oids)
+    {
+        final Set<String> ret;
+        if (oids instanceof final OidSet oidSet) {
+            ret = intern(oidSet);
+        } else {
+            final var oidSet = of(oids);
+            if (oidSet == null) {
+                ret = oids instanceof final Set<String> set ? set : Set.copyOf(oids);
+            } else {
+                ret = intern(oidSet);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @param typeIds sorted type ids
+     * @param ids sorted and distinct ids per type id
+     * @return the shared set with the given ids
+     */
+    static OidSet intern(final long[] typeIds,
+                         final long[][] ids)
+    {
+        return intern(new OidSet(typeIds, ids));
+    }
+
+    private static OidSet intern(final OidSet oidSet)
+    {
+        synchronized (POOL) {
+            final var ref = POOL.get(oidSet);
+            var ret = ref == null ? null : ref.get();
+            if (ret == null) {
+                POOL.put(oidSet, new WeakReference<>(oidSet));
+                ret = oidSet;
+            }
+            return ret;
+        }
+    }
+
+    private static OidSet of(final Collection<String> oids)
+    {
+        final Map<Long, long[]> type2ids = new TreeMap<>();
+        final Map<Long, Integer> type2count = new TreeMap<>();
+        for (final var oid : oids) {
+            final var pos = oid == null ? -1 : oid.indexOf('.');
+            final var typeId = pos > 0 ? parse(oid, 0, pos) : -1;
+            final var id = pos > 0 ? parse(oid, pos + 1, oid.length()) : -1;
+            if (typeId < 0 || id < 0) {
+                return null;
+            }
+            final var count = type2count.getOrDefault(typeId, 0);
+            var ids4Type = type2ids.get(typeId);
+            if (ids4Type == null) {
+                ids4Type = new long[16];
+            } else if (ids4Type.length == count) {
+                ids4Type = Arrays.copyOf(ids4Type, count * 2);
+            }
+            ids4Type[count] = id;
+            type2ids.put(typeId, ids4Type);
+            type2count.put(typeId, count + 1);
+        }
+        final var typeIds = new long[type2ids.size()];
+        final var ids = new long[type2ids.size()][];
+        int idx = 0;
+        for (final var entry : type2ids.entrySet()) {
+            typeIds[idx] = entry.getKey();
+            final var sorted = Arrays.copyOf(entry.getValue(), type2count.get(entry.getKey()));
+            Arrays.sort(sorted);
+            ids[idx++] = distinct(sorted);
+        }
+        return new OidSet(typeIds, ids);
+    }
+
+    private static long[] distinct(final long[] sorted)
+    {
+        int count = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (i == 0 || sorted[i] != sorted[i - 1]) {
+                sorted[count++] = sorted[i];
+            }
+        }
+        return count == sorted.length ? sorted : Arrays.copyOf(sorted, count);
+    }
+
+    /**
+     * @return the parsed number, -1 if the chars are not a positive number
+     */
+    private static long parse(final String value,
+                              final int start,
+                              final int end)
+    {
+        long ret = start < end && end - start < 19 ? 0 : -1;
+        for (int i = start; i < end && ret >= 0; i++) {
+            final var digit = value.charAt(i) - '0';
+            ret = digit < 0 || digit > 9 ? -1 : ret * 10 + digit;
+        }
+        return ret;
+    }
+}
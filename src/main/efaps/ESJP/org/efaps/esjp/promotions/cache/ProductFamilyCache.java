@@ -0,0 +1,129 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.esjp.promotions.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.efaps.admin.program.esjp.EFapsApplication;
+import org.efaps.admin.program.esjp.EFapsUUID;
+import org.efaps.eql.EQL;
+import org.efaps.esjp.ci.CIProducts;
+import org.efaps.util.EFapsException;
+import org.efaps.util.cache.InfinispanCache;
+import org.infinispan.Cache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Products of product families, shared by all conditions and promotions that
+ * use the same family. Families missing in the cache are resolved together in
+ * one query. The products of a family belong to another application that
+ * does not notify about changes, therefore the entries expire after
+ * {@link #LIFESPAN} minutes and are removed on every full clean of the
+ * promotion cache. The trade-off: a product added to or moved out of a family
+ * is seen by promotions loaded afterwards only once its entry expired or the
+ * cache was cleaned, and promotions already loaded keep the old products until
+ * their next reload.
+ */
+@EFapsUUID("54756157-cbc3-4287-8a6c-9368359ea561")
+@EFapsApplication("eFapsApp-Promotions")
+public final class ProductFamilyCache
+{
+
+    private static final Logger LOG = LoggerFactory.getLogger(ProductFamilyCache.class);
+
+    private static final String CACHENAME = ProductFamilyCache.class.getName() + ".Cache";
+
+    /** Minutes a resolved family is kept. */
+    private static final long LIFESPAN = 30;
+
+    private ProductFamilyCache()
+    {
+    }
+
+    /**
+     * @param familyIds ids of the product families
+     * @return product oids by family id
+     * @throws EFapsException on error
+     */
+    public static Map<Long, Set<String>> getProducts(final Collection<Long> familyIds)
+        throws EFapsException
+    {
+        final Map<Long, Set<String>> ret = new HashMap<>();
+        final List<Long> missing = new ArrayList<>();
+        for (final var familyId : familyIds) {
+            final var value = getCache().get(String.valueOf(familyId));
+            if (value == null) {
+                missing.add(familyId);
+            } else {
+                ret.put(familyId, split(value));
+            }
+        }
+        if (!missing.isEmpty()) {
+            LOG.debug("Resolving {} of {} product families", missing.size(), familyIds.size());
+            final Map<Long, Set<String>> loaded = new HashMap<>();
+            for (final var familyId : missing) {
+                loaded.put(familyId, new LinkedHashSet<>());
+            }
+            final var eval = EQL.builder().print().query(CIProducts.ProductAbstract)
+                            .where()
+                            .attribute(CIProducts.ProductAbstract.ProductFamilyLink).in(missing.toArray())
+                            .select()
+                            .attribute(CIProducts.ProductAbstract.ProductFamilyLink)
+                            .evaluate();
+            while (eval.next()) {
+                loaded.get(eval.<Long>get(CIProducts.ProductAbstract.ProductFamilyLink)).add(eval.inst().getOid());
+            }
+            for (final var entry : loaded.entrySet()) {
+                getCache().put(String.valueOf(entry.getKey()), String.join("\n", entry.getValue()), LIFESPAN,
+                                TimeUnit.MINUTES);
+            }
+            ret.putAll(loaded);
+        }
+        return ret;
+    }
+
+    public static void clean()
+    {
+        getCache().clear();
+    }
+
+    private static Set<String> split(final String value)
+    {
+        final Set<String> ret = new LinkedHashSet<>();
+        for (final var oid : value.split("\n")) {
+            if (!oid.isEmpty()) {
+                ret.add(oid);
+            }
+        }
+        return ret;
+    }
+
+    private static Cache<String, String> getCache()
+    {
+        if (!InfinispanCache.get().exists(CACHENAME)) {
+            InfinispanCache.get().initCache(CACHENAME);
+        }
+        return InfinispanCache.get().<String, String>getCache(CACHENAME);
+    }
+}
@@ -0,0 +1,895 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.esjp.promotions.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.OffsetDateTime;
+import java.time.OffsetTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Set;
+
+import org.efaps.admin.program.esjp.EFapsApplication;
+import org.efaps.admin.program.esjp.EFapsUUID;
+import org.efaps.esjp.common.serialization.SerializationUtil;
+import org.efaps.promotionengine.action.FixedAmountAction;
+import org.efaps.promotionengine.action.IAction;
+import org.efaps.promotionengine.action.PercentageDiscountAction;
+import org.efaps.promotionengine.action.Strategy;
+import org.efaps.promotionengine.condition.BINCondition;
+import org.efaps.promotionengine.condition.BINRegexCondition;
+import org.efaps.promotionengine.condition.DateCondition;
+import org.efaps.promotionengine.condition.DocTotalCondition;
+import org.efaps.promotionengine.condition.EntryOperator;
+import org.efaps.promotionengine.condition.ICondition;
+import org.efaps.promotionengine.condition.MaxCondition;
+import org.efaps.promotionengine.condition.Operator;
+import org.efaps.promotionengine.condition.OrCondition;
+import org.efaps.promotionengine.condition.ProductFamilyCondition;
+import org.efaps.promotionengine.condition.ProductFamilyConditionEntry;
+import org.efaps.promotionengine.condition.ProductTotalCondition;
+import org.efaps.promotionengine.condition.ProductsCondition;
+import org.efaps.promotionengine.condition.StackCondition;
+import org.efaps.promotionengine.condition.StoreCondition;
+import org.efaps.promotionengine.condition.TimeCondition;
+import org.efaps.promotionengine.promotion.Promotion;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.JavaType;
+
+/**
+ * Codec for the promotions stored in the cache. Every payload starts with a
+ * header of magic bytes, the format version and the encoding. The binary
+ * encoding writes the fields of promotions, conditions and actions directly.
+ * Product oids are written as the sorted long arrays of an {@link OidSet}
+ * with delta encoded ids and are read back into an {@link OidSet} without a
+ * String per oid. Conditions and actions of classes not known here are
+ * written as JSON. The JSON encoding is kept as fallback to be able to read
+ * the cache while debugging.
+ */
+@EFapsUUID("62f7bf43-a0f0-4879-8824-82a903c1a19d")
+@EFapsApplication("eFapsApp-Promotions")
+public final class PromotionCodec
+{
+
+    private static final Logger LOG = LoggerFactory.getLogger(PromotionCodec.class);
+
+    private static final byte[] MAGIC = { 'P', 'R', 'M' };
+
+    /** Version of the format, payloads with another version are ignored. */
+    public static final byte FORMAT_VERSION = 2;
+
+    public static final byte ENCODING_JSON = 0;
+    public static final byte ENCODING_BINARY = 1;
+
+    private static final int TAG_JSON = 0;
+    private static final int TAG_PRODUCTS = 1;
+    private static final int TAG_PRODUCTFAMILY = 2;
+    private static final int TAG_STORE = 3;
+    private static final int TAG_DATE = 4;
+    private static final int TAG_TIME = 5;
+    private static final int TAG_DOCTOTAL = 6;
+    private static final int TAG_PRODUCTTOTAL = 7;
+    private static final int TAG_MAX = 8;
+    private static final int TAG_STACK = 9;
+    private static final int TAG_OR = 10;
+    private static final int TAG_BIN = 11;
+    private static final int TAG_BINREGEX = 12;
+
+    private static final int TAG_PERCENTAGE = 1;
+    private static final int TAG_FIXEDAMOUNT = 2;
+
+    private static final int OIDS_NULL = 0;
+    private static final int OIDS_SET = 1;
+    private static final int OIDS_STRINGS = 2;
+
+    private PromotionCodec()
+    {
+    }
+
+    public static byte[] encode(final List<Promotion> promotions,
+                                final boolean json)
+        throws IOException
+    {
+        final var start = System.nanoTime();
+        final byte[] ret = json ? encodeJson(promotions) : encodeBinary(promotions);
+        LOG.debug("Encoded {} promotions as {}: {} bytes in {} µs", promotions.size(), json ? "JSON" : "binary",
+                        ret.length, (System.nanoTime() - start) / 1000);
+        return ret;
+    }
+
+    /**
+     * @param payload payload as written by {@link #encode(List, boolean)}
+     * @return the promotions, <code>null</code> if the payload was written in
+     *         another format version
+     * @throws IOException on error
+     */
+    public static List<Promotion> decode(final byte[] payload)
+        throws IOException
+    {
+        if (payload == null || payload.length < MAGIC.length + 2 || payload[0] != MAGIC[0]
+                        || payload[1] != MAGIC[1] || payload[2] != MAGIC[2]) {
+            LOG.warn("Ignoring cached promotions without valid header");
+            return null;
+        }
+        if (payload[MAGIC.length] != FORMAT_VERSION) {
+            LOG.info("Ignoring cached promotions of format version {}", payload[MAGIC.length]);
+            return null;
+        }
+        final var start = System.nanoTime();
+        final var offset = MAGIC.length + 2;
+        final List<Promotion> ret;
+        if (payload[MAGIC.length + 1] == ENCODING_JSON) {
+            final var objectMapper = SerializationUtil.getObjectMapper();
+            final JavaType type = objectMapper.getTypeFactory().constructCollectionType(List.class,
+                            Promotion.class);
+            ret = objectMapper.readValue(payload, offset, payload.length - offset, type);
+            for (final var promotion : ret) {
+                internProducts(promotion.getSourceConditions());
+                internProducts(promotion.getTargetConditions());
+            }
+        } else {
+            final var in = new DataInputStream(new ByteArrayInputStream(payload, offset, payload.length - offset));
+            final var size = readVarInt(in);
+            ret = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                ret.add(readPromotion(in));
+            }
+        }
+        LOG.debug("Decoded {} promotions from {} bytes in {} µs", ret.size(), payload.length,
+                        (System.nanoTime() - start) / 1000);
+        return ret;
+    }
+
+    /**
+     * The products are deserialized from JSON as plain sets of strings,
+     * replace them by the shared primitive sets also used for freshly loaded
+     * promotions.
+     */
+    private static void internProducts(final Collection<ICondition> conditions)
+    {
+        if (conditions != null) {
+            for (final var condition : conditions) {
+                if (condition instanceof final ProductsCondition productsCondition
+                                && productsCondition.getProducts() != null) {
+                    productsCondition.setProducts(OidSet.intern(productsCondition.getProducts()));
+                } else if (condition instanceof final OrCondition orCondition) {
+                    internProducts(orCondition.getConditions());
+                }
+            }
+        }
+    }
+
+    /**
+     * @param payload encoded payload
+     * @return version of the payload, derived from its content so that
+     *         unchanged promotions keep their version over reloads
+     */
+    public static String evalVersion(final byte[] payload)
+    {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-1").digest(payload));
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] encodeJson(final List<Promotion> promotions)
+        throws IOException
+    {
+        final var out = new ByteArrayOutputStream();
+        writeHeader(out, ENCODING_JSON);
+        SerializationUtil.getObjectMapper().writeValue(out, promotions);
+        return out.toByteArray();
+    }
+
+    private static byte[] encodeBinary(final List<Promotion> promotions)
+        throws IOException
+    {
+        final var bytes = new ByteArrayOutputStream();
+        writeHeader(bytes, ENCODING_BINARY);
+        final var out = new DataOutputStream(bytes);
+        writeVarInt(out, promotions.size());
+        for (final var promotion : promotions) {
+            writePromotion(out, promotion);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static void writeHeader(final ByteArrayOutputStream out,
+                                    final byte encoding)
+    {
+        out.write(MAGIC, 0, MAGIC.length);
+        out.write(FORMAT_VERSION);
+        out.write(encoding);
+    }
+
+    private static void writePromotion(final DataOutputStream out,
+                                       final Promotion promotion)
+        throws IOException
+    {
+        writeString(out, promotion.getOid());
+        writeString(out, promotion.getName());
+        writeString(out, promotion.getDescription());
+        writeString(out, promotion.getLabel());
+        final Integer priority = promotion.getPriority();
+        writeInteger(out, priority);
+        writeDateTime(out, promotion.getStartDateTime());
+        writeDateTime(out, promotion.getEndDateTime());
+        writeConditions(out, promotion.getSourceConditions());
+        writeConditions(out, promotion.getTargetConditions());
+        final var actions = promotion.getActions();
+        writeVarInt(out, actions == null ? 0 : actions.size());
+        if (actions != null) {
+            for (final var action : actions) {
+                writeAction(out, action);
+            }
+        }
+    }
+
+    private static Promotion readPromotion(final DataInputStream in)
+        throws IOException
+    {
+        final var builder = Promotion.builder()
+                        .withOid(readString(in))
+                        .withName(readString(in))
+                        .withDescription(readString(in))
+                        .withLabel(readString(in))
+                        .withPriority(readInteger(in))
+                        .withStartDateTime(readDateTime(in))
+                        .withEndDateTime(readDateTime(in));
+        for (final var condition : readConditions(in)) {
+            builder.addSourceCondition(condition);
+        }
+        for (final var condition : readConditions(in)) {
+            builder.addTargetCondition(condition);
+        }
+        final var actionCount = readVarInt(in);
+        for (int i = 0; i < actionCount; i++) {
+            builder.addAction(readAction(in));
+        }
+        return builder.build();
+    }
+
+    private static void writeConditions(final DataOutputStream out,
+                                        final Collection<ICondition> conditions)
+        throws IOException
+    {
+        writeVarInt(out, conditions == null ? 0 : conditions.size());
+        if (conditions != null) {
+            for (final var condition : conditions) {
+                writeCondition(out, condition);
+            }
+        }
+    }
+
+    private static List<ICondition> readConditions(final DataInputStream in)
+        throws IOException
+    {
+        final var size = readVarInt(in);
+        final List<ICondition> ret = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            ret.add(readCondition(in));
+        }
+        return ret;
+    }
+
+    /**
+     * Only the exact classes are written field by field, so that a subclass
+     * does not lose its additional fields.
+     */
+    private static void writeCondition(final DataOutputStream out,
+                                       final ICondition condition)
+        throws IOException
+    {
+        final var clazz = condition.getClass();
+        if (clazz == ProductsCondition.class) {
+            final var productsCondition = (ProductsCondition) condition;
+            writeVarInt(out, TAG_PRODUCTS);
+            writeString(out, productsCondition.getNote());
+            writeDecimal(out, productsCondition.getPositionQuantity());
+            writeEnum(out, productsCondition.getEntryOperator());
+            out.writeBoolean(productsCondition.isAllowTargetSameAsSource());
+            writeOids(out, productsCondition.getProducts());
+        } else if (clazz == ProductFamilyCondition.class) {
+            final var familyCondition = (ProductFamilyCondition) condition;
+            writeVarInt(out, TAG_PRODUCTFAMILY);
+            writeString(out, familyCondition.getNote());
+            writeEnum(out, familyCondition.getEntryOperator());
+            out.writeBoolean(familyCondition.isAllowTargetSameAsSource());
+            final var entries = familyCondition.getEntries();
+            writeVarInt(out, entries == null ? 0 : entries.size());
+            if (entries != null) {
+                for (final var entry : entries) {
+                    writeString(out, entry.getProductFamilyOid());
+                    writeOids(out, entry.getProducts());
+                }
+            }
+        } else if (clazz == StoreCondition.class) {
+            final var storeCondition = (StoreCondition) condition;
+            writeVarInt(out, TAG_STORE);
+            writeString(out, storeCondition.getNote());
+            writeEnum(out, storeCondition.getEntryOperator());
+            writeStrings(out, storeCondition.getIdentifiers());
+        } else if (clazz == DateCondition.class) {
+            final var dateCondition = (DateCondition) condition;
+            writeVarInt(out, TAG_DATE);
+            writeString(out, dateCondition.getNote());
+            final var ranges = dateCondition.getRanges();
+            writeVarInt(out, ranges == null ? 0 : ranges.size());
+            if (ranges != null) {
+                for (final var range : ranges) {
+                    writeDate(out, range.getStartDate());
+                    writeDate(out, range.getEndDate());
+                }
+            }
+        } else if (clazz == TimeCondition.class) {
+            final var timeCondition = (TimeCondition) condition;
+            writeVarInt(out, TAG_TIME);
+            writeString(out, timeCondition.getNote());
+            final var ranges = timeCondition.getRanges();
+            writeVarInt(out, ranges == null ? 0 : ranges.size());
+            if (ranges != null) {
+                for (final var range : ranges) {
+                    writeTime(out, range.getStartTime());
+                    writeTime(out, range.getEndTime());
+                }
+            }
+        } else if (clazz == DocTotalCondition.class) {
+            final var docTotalCondition = (DocTotalCondition) condition;
+            writeVarInt(out, TAG_DOCTOTAL);
+            writeString(out, docTotalCondition.getNote());
+            writeDecimal(out, docTotalCondition.getTotal());
+            writeEnum(out, docTotalCondition.getOperator());
+        } else if (clazz == ProductTotalCondition.class) {
+            final var productTotalCondition = (ProductTotalCondition) condition;
+            writeVarInt(out, TAG_PRODUCTTOTAL);
+            writeString(out, productTotalCondition.getNote());
+            writeDecimal(out, productTotalCondition.getTotal());
+            writeEnum(out, productTotalCondition.getOperator());
+            writeStrings(out, productTotalCondition.getProducts());
+        } else if (clazz == MaxCondition.class) {
+            final var maxCondition = (MaxCondition) condition;
+            writeVarInt(out, TAG_MAX);
+            writeString(out, maxCondition.getNote());
+            final Integer max = maxCondition.getMax();
+            writeInteger(out, max);
+        } else if (clazz == StackCondition.class) {
+            writeVarInt(out, TAG_STACK);
+            writeString(out, ((StackCondition) condition).getNote());
+        } else if (clazz == OrCondition.class) {
+            final var orCondition = (OrCondition) condition;
+            writeVarInt(out, TAG_OR);
+            writeString(out, orCondition.getNote());
+            writeConditions(out, orCondition.getConditions());
+        } else if (clazz == BINCondition.class) {
+            final var binCondition = (BINCondition) condition;
+            writeVarInt(out, TAG_BIN);
+            writeString(out, binCondition.getNote());
+            writeStrings(out, binCondition.getIdentifiers());
+        } else if (clazz == BINRegexCondition.class) {
+            final var binRegexCondition = (BINRegexCondition) condition;
+            writeVarInt(out, TAG_BINREGEX);
+            writeString(out, binRegexCondition.getNote());
+            writeString(out, binRegexCondition.getRegex());
+        } else {
+            writeVarInt(out, TAG_JSON);
+            writeJson(out, condition);
+        }
+    }
+
+    private static ICondition readCondition(final DataInputStream in)
+        throws IOException
+    {
+        final ICondition ret;
+        final var tag = readVarInt(in);
+        final var note = tag == TAG_JSON ? null : readString(in);
+        switch (tag) {
+            case TAG_PRODUCTS:
+                final var positionQuantity = readDecimal(in);
+                final var productsOperator = readEnum(in, EntryOperator.values());
+                final var productsSameAsSource = in.readBoolean();
+                ret = new ProductsCondition()
+                                .setPositionQuantity(positionQuantity)
+                                .setEntryOperator(productsOperator)
+                                .setAllowTargetSameAsSource(productsSameAsSource)
+                                .setProducts(readOids(in))
+                                .setNote(note);
+                break;
+            case TAG_PRODUCTFAMILY:
+                final var familyOperator = readEnum(in, EntryOperator.values());
+                final var familySameAsSource = in.readBoolean();
+                final var entryCount = readVarInt(in);
+                final var entries = new ArrayList<ProductFamilyConditionEntry>(entryCount);
+                for (int i = 0; i < entryCount; i++) {
+                    final var entry = new ProductFamilyConditionEntry().setProductFamilyOid(readString(in));
+                    final var products = readOids(in);
+                    if (products != null) {
+                        for (final var prodOid : products) {
+                            entry.addProduct(prodOid);
+                        }
+                    }
+                    entries.add(entry);
+                }
+                ret = new ProductFamilyCondition()
+                                .setEntryOperator(familyOperator)
+                                .setAllowTargetSameAsSource(familySameAsSource)
+                                .setEntries(entries)
+                                .setNote(note);
+                break;
+            case TAG_STORE:
+                final var storeCondition = new StoreCondition();
+                storeCondition.setEntryOperator(readEnum(in, EntryOperator.values()));
+                storeCondition.setNote(note);
+                for (final var identifier : readStrings(in)) {
+                    storeCondition.addIdentifier(identifier);
+                }
+                ret = storeCondition;
+                break;
+            case TAG_DATE:
+                final var dateCondition = new DateCondition();
+                dateCondition.setNote(note);
+                final var dateRanges = readVarInt(in);
+                for (int i = 0; i < dateRanges; i++) {
+                    dateCondition.addRange(readDate(in), readDate(in));
+                }
+                ret = dateCondition;
+                break;
+            case TAG_TIME:
+                final var timeCondition = new TimeCondition();
+                timeCondition.setNote(note);
+                final var timeRanges = readVarInt(in);
+                for (int i = 0; i < timeRanges; i++) {
+                    timeCondition.addRange(readTime(in), readTime(in));
+                }
+                ret = timeCondition;
+                break;
+            case TAG_DOCTOTAL:
+                final var docTotal = readDecimal(in);
+                ret = new DocTotalCondition()
+                                .setTotal(docTotal)
+                                .setOperator(readEnum(in, Operator.values()))
+                                .setNote(note);
+                break;
+            case TAG_PRODUCTTOTAL:
+                final var productTotal = readDecimal(in);
+                final var productTotalCondition = new ProductTotalCondition();
+                productTotalCondition.setTotal(productTotal)
+                                .setOperator(readEnum(in, Operator.values()))
+                                .setNote(note);
+                for (final var prodOid : readStrings(in)) {
+                    productTotalCondition.addProduct(prodOid);
+                }
+                ret = productTotalCondition;
+                break;
+            case TAG_MAX:
+                ret = new MaxCondition()
+                                .setMax(readInteger(in))
+                                .setNote(note);
+                break;
+            case TAG_STACK:
+                ret = new StackCondition()
+                                .setNote(note);
+                break;
+            case TAG_OR:
+                final var orCondition = new OrCondition();
+                orCondition.setNote(note);
+                for (final var child : readConditions(in)) {
+                    orCondition.addCondition(child);
+                }
+                ret = orCondition;
+                break;
+            case TAG_BIN:
+                final var binCondition = new BINCondition();
+                binCondition.setNote(note);
+                for (final var identifier : readStrings(in)) {
+                    binCondition.addIdentifier(identifier);
+                }
+                ret = binCondition;
+                break;
+            case TAG_BINREGEX:
+                ret = new BINRegexCondition()
+                                .setRegex(readString(in))
+                                .setNote(note);
+                break;
+            case TAG_JSON:
+                ret = (ICondition) readJson(in);
+                break;
+            default:
+                throw new IOException("Unknown condition tag: " + tag);
+        }
+        return ret;
+    }
+
+    private static void writeAction(final DataOutputStream out,
+                                    final IAction action)
+        throws IOException
+    {
+        final var clazz = action.getClass();
+        if (clazz == PercentageDiscountAction.class) {
+            final var percentageAction = (PercentageDiscountAction) action;
+            writeVarInt(out, TAG_PERCENTAGE);
+            writeDecimal(out, percentageAction.getPercentage());
+            writeEnum(out, percentageAction.getStrategy());
+        } else if (clazz == FixedAmountAction.class) {
+            final var fixedAmountAction = (FixedAmountAction) action;
+            writeVarInt(out, TAG_FIXEDAMOUNT);
+            writeDecimal(out, fixedAmountAction.getAmount());
+            writeEnum(out, fixedAmountAction.getStrategy());
+        } else {
+            writeVarInt(out, TAG_JSON);
+            writeJson(out, action);
+        }
+    }
+
+    private static IAction readAction(final DataInputStream in)
+        throws IOException
+    {
+        final IAction ret;
+        final var tag = readVarInt(in);
+        switch (tag) {
+            case TAG_PERCENTAGE:
+                final var percentage = readDecimal(in);
+                ret = new PercentageDiscountAction()
+                                .setPercentage(percentage)
+                                .setStrategy(readEnum(in, Strategy.values()));
+                break;
+            case TAG_FIXEDAMOUNT:
+                final var amount = readDecimal(in);
+                ret = new FixedAmountAction()
+                                .setAmount(amount)
+                                .setStrategy(readEnum(in, Strategy.values()));
+                break;
+            case TAG_JSON:
+                ret = (IAction) readJson(in);
+                break;
+            default:
+                throw new IOException("Unknown action tag: " + tag);
+        }
+        return ret;
+    }
+
+    /**
+     * Oids are written as an {@link OidSet}: per type the type id and the
+     * sorted ids as deltas. Collections with other values than oids are
+     * written as strings.
+     */
+    private static void writeOids(final DataOutputStream out,
+                                  final Collection<String> oids)
+        throws IOException
+    {
+        final var interned = oids == null ? null : OidSet.intern(oids);
+        if (interned == null) {
+            writeVarInt(out, OIDS_NULL);
+        } else if (interned instanceof final OidSet oidSet) {
+            writeVarInt(out, OIDS_SET);
+            final var typeIds = oidSet.getTypeIds();
+            writeVarInt(out, typeIds.length);
+            for (int i = 0; i < typeIds.length; i++) {
+                writeVarLong(out, typeIds[i]);
+                final var ids = oidSet.getIds(i);
+                writeVarInt(out, ids.length);
+                long previous = 0;
+                for (final var id : ids) {
+                    writeVarLong(out, id - previous);
+                    previous = id;
+                }
+            }
+        } else {
+            writeVarInt(out, OIDS_STRINGS);
+            writeStrings(out, interned);
+        }
+    }
+
+    private static Set<String> readOids(final DataInputStream in)
+        throws IOException
+    {
+        final Set<String> ret;
+        final var kind = readVarInt(in);
+        if (kind == OIDS_SET) {
+            final var typeIds = new long[readVarInt(in)];
+            final var ids = new long[typeIds.length][];
+            for (int i = 0; i < typeIds.length; i++) {
+                typeIds[i] = readVarLong(in);
+                ids[i] = new long[readVarInt(in)];
+                long previous = 0;
+                for (int j = 0; j < ids[i].length; j++) {
+                    previous += readVarLong(in);
+                    ids[i][j] = previous;
+                }
+            }
+            ret = OidSet.intern(typeIds, ids);
+        } else if (kind == OIDS_STRINGS) {
+            ret = Set.copyOf(readStrings(in));
+        } else {
+            ret = null;
+        }
+        return ret;
+    }
+
+    private static void writeStrings(final DataOutputStream out,
+                                     final Collection<String> values)
+        throws IOException
+    {
+        writeVarInt(out, values == null ? 0 : values.size());
+        if (values != null) {
+            for (final var value : values) {
+                writeString(out, value);
+            }
+        }
+    }
+
+    private static List<String> readStrings(final DataInputStream in)
+        throws IOException
+    {
+        final var size = readVarInt(in);
+        final List<String> ret = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            ret.add(readString(in));
+        }
+        return ret;
+    }
+
+    /** The length is written plus one, so that zero stands for null. */
+    private static void writeString(final DataOutputStream out,
+                                    final String value)
+        throws IOException
+    {
+        if (value == null) {
+            writeVarInt(out, 0);
+        } else {
+            final var bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarInt(out, bytes.length + 1);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(final DataInputStream in)
+        throws IOException
+    {
+        final String ret;
+        final var length = readVarInt(in);
+        if (length == 0) {
+            ret = null;
+        } else {
+            final var bytes = new byte[length - 1];
+            in.readFully(bytes);
+            ret = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return ret;
+    }
+
+    private static void writeInteger(final DataOutputStream out,
+                                     final Integer value)
+        throws IOException
+    {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            writeVarLong(out, value);
+        }
+    }
+
+    private static Integer readInteger(final DataInputStream in)
+        throws IOException
+    {
+        return in.readBoolean() ? Integer.valueOf((int) readVarLong(in)) : null;
+    }
+
+    private static void writeDecimal(final DataOutputStream out,
+                                     final BigDecimal value)
+        throws IOException
+    {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            writeVarLong(out, value.scale());
+            writeBytes(out, value.unscaledValue().toByteArray());
+        }
+    }
+
+    private static BigDecimal readDecimal(final DataInputStream in)
+        throws IOException
+    {
+        BigDecimal ret = null;
+        if (in.readBoolean()) {
+            final var scale = (int) readVarLong(in);
+            ret = new BigDecimal(new BigInteger(readBytes(in)), scale);
+        }
+        return ret;
+    }
+
+    private static void writeEnum(final DataOutputStream out,
+                                  final Enum<?> value)
+        throws IOException
+    {
+        writeVarInt(out, value == null ? 0 : value.ordinal() + 1);
+    }
+
+    private static <T extends Enum<T>> T readEnum(final DataInputStream in,
+                                                  final T[] values)
+        throws IOException
+    {
+        final var ordinal = readVarInt(in);
+        return ordinal == 0 ? null : values[ordinal - 1];
+    }
+
+    private static void writeDateTime(final DataOutputStream out,
+                                      final OffsetDateTime value)
+        throws IOException
+    {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            writeVarLong(out, value.toEpochSecond());
+            writeVarInt(out, value.getNano());
+            writeVarLong(out, value.getOffset().getTotalSeconds());
+        }
+    }
+
+    private static OffsetDateTime readDateTime(final DataInputStream in)
+        throws IOException
+    {
+        OffsetDateTime ret = null;
+        if (in.readBoolean()) {
+            final var instant = Instant.ofEpochSecond(readVarLong(in), readVarInt(in));
+            ret = OffsetDateTime.ofInstant(instant, ZoneOffset.ofTotalSeconds((int) readVarLong(in)));
+        }
+        return ret;
+    }
+
+    private static void writeDate(final DataOutputStream out,
+                                  final LocalDate value)
+        throws IOException
+    {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            writeVarLong(out, value.toEpochDay());
+        }
+    }
+
+    private static LocalDate readDate(final DataInputStream in)
+        throws IOException
+    {
+        return in.readBoolean() ? LocalDate.ofEpochDay(readVarLong(in)) : null;
+    }
+
+    private static void writeTime(final DataOutputStream out,
+                                  final OffsetTime value)
+        throws IOException
+    {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            writeVarLong(out, value.toLocalTime().toNanoOfDay());
+            writeVarLong(out, value.getOffset().getTotalSeconds());
+        }
+    }
+
+    private static OffsetTime readTime(final DataInputStream in)
+        throws IOException
+    {
+        OffsetTime ret = null;
+        if (in.readBoolean()) {
+            final var time = LocalTime.ofNanoOfDay(readVarLong(in));
+            ret = OffsetTime.of(time, ZoneOffset.ofTotalSeconds((int) readVarLong(in)));
+        }
+        return ret;
+    }
+
+    /** Written with its class, so that it can be read without type information. */
+    private static void writeJson(final DataOutputStream out,
+                                  final Object value)
+        throws IOException
+    {
+        writeString(out, value.getClass().getName());
+        writeBytes(out, SerializationUtil.getObjectMapper().writeValueAsBytes(value));
+    }
+
+    private static Object readJson(final DataInputStream in)
+        throws IOException
+    {
+        final var className = readString(in);
+        final var bytes = readBytes(in);
+        try {
+            return SerializationUtil.getObjectMapper().readValue(bytes, Class.forName(className));
+        } catch (final ClassNotFoundException e) {
+            throw new IOException("Unknown class: " + className, e);
+        }
+    }
+
+    private static void writeBytes(final DataOutputStream out,
+                                   final byte[] bytes)
+        throws IOException
+    {
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(final DataInputStream in)
+        throws IOException
+    {
+        final var ret = new byte[readVarInt(in)];
+        in.readFully(ret);
+        return ret;
+    }
+
+    private static void writeVarInt(final DataOutputStream out,
+                                    final int value)
+        throws IOException
+    {
+        var current = value;
+        while ((current & ~0x7F) != 0) {
+            out.writeByte((current & 0x7F) | 0x80);
+            current >>>= 7;
+        }
+        out.writeByte(current);
+    }
+
+    private static int readVarInt(final DataInputStream in)
+        throws IOException
+    {
+        int ret = 0;
+        int shift = 0;
+        byte current;
+        do {
+            current = in.readByte();
+            ret |= (current & 0x7F) << shift;
+            shift += 7;
+        } while ((current & 0x80) != 0);
+        return ret;
+    }
+
+    /** Zig-zag encoded, so that small negative values stay small. */
+    private static void writeVarLong(final DataOutputStream out,
+                                     final long value)
+        throws IOException
+    {
+        var current = (value << 1) ^ (value >> 63);
+        while ((current & ~0x7FL) != 0) {
+            out.writeByte((int) ((current & 0x7F) | 0x80));
+            current >>>= 7;
+        }
+        out.writeByte((int) current);
+    }
+
+    private static long readVarLong(final DataInputStream in)
+        throws IOException
+    {
+        long raw = 0;
+        int shift = 0;
+        byte current;
+        do {
+            current = in.readByte();
+            raw |= (long) (current & 0x7F) << shift;
+            shift += 7;
+        } while ((current & 0x80) != 0);
+        return (raw >>> 1) ^ -(raw & 1);
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.esjp.promotions.cache;
+
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.efaps.admin.program.esjp.EFapsApplication;
+import org.efaps.admin.program.esjp.EFapsUUID;
+import org.efaps.promotionengine.api.IDocument;
+import org.efaps.promotionengine.condition.EntryOperator;
+import org.efaps.promotionengine.condition.ICondition;
+import org.efaps.promotionengine.condition.ProductFamilyCondition;
+import org.efaps.promotionengine.condition.ProductsCondition;
+import org.efaps.promotionengine.condition.StoreCondition;
+import org.efaps.promotionengine.promotion.Promotion;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Index over the promotions of a snapshot that returns for a document only the
+ * promotions that can possibly match it. A promotion is left out only if one
+ * of its source conditions can not be met: none of the products of a
+ * including products or family condition is part of the document, the store
+ * is not one of the identifiers of a including store condition, or the
+ * evaluation date lies outside of the {@link PromotionWindow} of the promotion. Everything
+ * else (e.g. OrConditions, excluding conditions) is left to the engine, so the
+ * result of the calculation is the same as with the full list.
+ */
+@EFapsUUID("e1fea3bd-397b-4d29-b150-acbecdef3a36")
+@EFapsApplication("eFapsApp-Promotions")
+public final class PromotionIndex
+{
+
+    private static final Logger LOG = LoggerFactory.getLogger(PromotionIndex.class);
+
+    private final List<Promotion> promotions;
+
+    /** Promotions without a product restriction. */
+    private final BitSet anyProduct = new BitSet();
+
+    /** Sorted packed oids of the products, see {@link OidSet#pack(long, long)}. */
+    private final long[] productKeys;
+
+    /** Promotions per product, parallel to {@link #productKeys}. */
+    private final BitSet[] productPromotions;
+
+    /** Promotions without a store restriction. */
+    private final BitSet anyStore = new BitSet();
+
+    private final Map<String, BitSet> store2promotions = new HashMap<>();
+
+    private final PromotionWindow[] windows;
+
+    public PromotionIndex(final List<Promotion> promotions,
+                          final PromotionWindow[] windows)
+    {
+        this.promotions = promotions;
+        this.windows = windows;
+        final var promotionKeys = new long[promotions.size()][];
+        int total = 0;
+        for (int i = 0; i < promotions.size(); i++) {
+            final var promotion = promotions.get(i);
+            promotionKeys[i] = evalKeys(evalProducts(promotion.getSourceConditions()));
+            if (promotionKeys[i] == null) {
+                anyProduct.set(i);
+            } else {
+                total += promotionKeys[i].length;
+            }
+            final var stores = evalStores(promotion.getSourceConditions());
+            if (stores == null) {
+                anyStore.set(i);
+            } else {
+                for (final var store : stores) {
+                    store2promotions.computeIfAbsent(store, key -> new BitSet()).set(i);
+                }
+            }
+        }
+        final var allKeys = new long[total];
+        int pos = 0;
+        for (final var keys : promotionKeys) {
+            if (keys != null) {
+                System.arraycopy(keys, 0, allKeys, pos, keys.length);
+                pos += keys.length;
+            }
+        }
+        Arrays.sort(allKeys);
+        productKeys = distinct(allKeys);
+        productPromotions = new BitSet[productKeys.length];
+        for (int i = 0; i < promotionKeys.length; i++) {
+            if (promotionKeys[i] != null) {
+                for (final var key : promotionKeys[i]) {
+                    final var idx = Arrays.binarySearch(productKeys, key);
+                    if (productPromotions[idx] == null) {
+                        productPromotions[idx] = new BitSet();
+                    }
+                    productPromotions[idx].set(i);
+                }
+            }
+        }
+        LOG.debug("Indexed {} promotions by {} products and {} stores", promotions.size(),
+                        productKeys.length, store2promotions.size());
+    }
+
+    /**
+     * @param document document to be calculated
+     * @param data data handed to the calculator
+     * @param dateTime evaluation date time, <code>null</code> for no filter
+     * @return the promotions that can possibly match, in the order of the
+     *         snapshot
+     */
+    public List<Promotion> getCandidates(final IDocument document,
+                                         final Map<String, Object> data,
+                                         final OffsetDateTime dateTime)
+    {
+        final var candidates = (BitSet) anyProduct.clone();
+        for (final var position : document.getPositions()) {
+            or(candidates, getPromotions4Product(position.getProductOid()));
+            if (position.getStandInOid() != null) {
+                or(candidates, getPromotions4Product(position.getStandInOid()));
+            }
+        }
+        final var store = data == null ? null : data.get(StoreCondition.KEY);
+        if (store != null) {
+            final var stores = (BitSet) anyStore.clone();
+            or(stores, store2promotions.get(store));
+            candidates.and(stores);
+        }
+        final List<Promotion> ret = new ArrayList<>(candidates.cardinality());
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+            if (dateTime == null || windows[i].covers(dateTime)) {
+                ret.add(promotions.get(i));
+            }
+        }
+        LOG.debug("Using {} of {} promotions", ret.size(), promotions.size());
+        return ret;
+    }
+
+    private BitSet getPromotions4Product(final String oid)
+    {
+        BitSet ret = null;
+        final var key = OidSet.pack(oid);
+        if (key >= 0) {
+            final var idx = Arrays.binarySearch(productKeys, key);
+            ret = idx < 0 ? null : productPromotions[idx];
+        }
+        return ret;
+    }
+
+    /**
+     * @return the sorted packed oids of the products, <code>null</code> if
+     *         the promotion is not restricted by product or one of the oids
+     *         can not be packed
+     */
+    private static long[] evalKeys(final Set<String> products)
+    {
+        long[] ret = null;
+        if (products instanceof final OidSet oidSet) {
+            ret = new long[oidSet.size()];
+            int pos = 0;
+            final var typeIds = oidSet.getTypeIds();
+            for (int i = 0; i < typeIds.length && ret != null; i++) {
+                for (final var id : oidSet.getIds(i)) {
+                    final var key = OidSet.pack(typeIds[i], id);
+                    if (key < 0) {
+                        ret = null;
+                        break;
+                    }
+                    ret[pos++] = key;
+                }
+            }
+        } else if (products != null) {
+            ret = new long[products.size()];
+            int pos = 0;
+            for (final var product : products) {
+                final var key = OidSet.pack(product);
+                if (key < 0) {
+                    ret = null;
+                    break;
+                }
+                ret[pos++] = key;
+            }
+            if (ret != null) {
+                Arrays.sort(ret);
+            }
+        }
+        return ret;
+    }
+
+    private static long[] distinct(final long[] sorted)
+    {
+        int count = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (i == 0 || sorted[i] != sorted[i - 1]) {
+                sorted[count++] = sorted[i];
+            }
+        }
+        return count == sorted.length ? sorted : Arrays.copyOf(sorted, count);
+    }
+
+    /**
+     * @return the products of the most selective including product condition,
+     *         <code>null</code> if the promotion is not restricted by product
+     */
+    private static Set<String> evalProducts(final Collection<ICondition> conditions)
+    {
+        Set<String> ret = null;
+        if (conditions != null) {
+            for (final var condition : conditions) {
+                Set<String> products = null;
+                if (condition instanceof final ProductsCondition productsCondition
+                                && isIncluding(productsCondition.getEntryOperator())) {
+                    products = productsCondition.getProducts();
+                } else if (condition instanceof final ProductFamilyCondition familyCondition
+                                && isIncluding(familyCondition.getEntryOperator())
+                                && familyCondition.getEntries() != null) {
+                    products = new HashSet<>();
+                    for (final var entry : familyCondition.getEntries()) {
+                        if (entry.getProducts() != null) {
+                            products.addAll(entry.getProducts());
+                        }
+                    }
+                }
+                // an empty set can not be used to narrow down
+                if (products != null && !products.isEmpty() && (ret == null || products.size() < ret.size())) {
+                    ret = products;
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return the identifiers of a including store condition,
+     *         <code>null</code> if the promotion is not restricted by store
+     */
+    static Set<String> evalStores(final Collection<ICondition> conditions)
+    {
+        Set<String> ret = null;
+        if (conditions != null) {
+            for (final var condition : conditions) {
+                if (condition instanceof final StoreCondition storeCondition
+                                && EntryOperator.INCLUDES_ANY.equals(storeCondition.getEntryOperator())
+                                && storeCondition.getIdentifiers() != null
+                                && !storeCondition.getIdentifiers().isEmpty()) {
+                    ret = new HashSet<>(storeCondition.getIdentifiers());
+                }
+            }
+        }
+        return ret;
+    }
+
+    private static boolean isIncluding(final EntryOperator entryOperator)
+    {
+        return EntryOperator.INCLUDES_ANY.equals(entryOperator) || EntryOperator.INCLUDES_ALL.equals(entryOperator);
+    }
+
+    private static void or(final BitSet target,
+                           final BitSet bits)
+    {
+        if (bits != null) {
+            target.or(bits);
+        }
+    }
+}
@@ -0,0 +1,343 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.esjp.promotions.cache;
+
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.efaps.admin.program.esjp.EFapsApplication;
+import org.efaps.admin.program.esjp.EFapsUUID;
+import org.efaps.promotionengine.promotion.Promotion;
+
+/**
+ * Immutable, already deserialized set of active promotions of one company.
+ * The version is the stamp that was stored together with the cached index, so
+ * a node only has to compare stamps to know if its snapshot is still current.
+ * The version of each promotion is the one of its cache entry and allows to
+ * reuse unchanged promotions when a new index is published.
+ * The promotions are partitioned into buckets per hour by their
+ * {@link PromotionWindow}, so for an instant only the promotions of its hour
+ * have to be checked and promotions outside of their window are never handed
+ * to the calculator. For a store (the identifier of a POS backend) a view
+ * keeps only the promotions whose store condition allows it and the ones
+ * without store restriction. Windows and store restrictions of promotions that
+ * did not change are taken over from the previous snapshot, so a changed
+ * promotion only recalculates itself.
+ */
+@EFapsUUID("e02eb400-f4e2-45c5-9a6c-6175290fc81b")
+@EFapsApplication("eFapsApp-Promotions")
+public final class PromotionSnapshot
+{
+
+    /** Snapshots by company id, held in the memory of this node. */
+    private static final Map<Long, PromotionSnapshot> SNAPSHOTS = new ConcurrentHashMap<>();
+
+    /** Source of the stamps that order the loads of this node. */
+    private static final AtomicLong STAMPS = new AtomicLong();
+
+    /** Buckets kept at most, one week of hours. */
+    private static final int MAX_BUCKETS = 168;
+
+    private final long stamp;
+
+    private final String version;
+
+    private final List<Promotion> promotions;
+
+    private final Map<String, Promotion> oid2promotion;
+
+    private final Map<String, Integer> oid2position;
+
+    private final Map<String, String> oid2version;
+
+    /** Built on first use, only needed if the calculator uses the index. */
+    private volatile PromotionIndex index;
+
+    private final PromotionWindow[] windows;
+
+    /** Store identifiers per promotion, <code>null</code> if not restricted. */
+    private final List<Set<String>> stores;
+
+    /** Positions of the promotions that can be valid within an hour. */
+    private final Map<String, int[]> buckets = new ConcurrentHashMap<>();
+
+    /** Positions of the promotions allowed for a store, by its identifier. */
+    private final Map<String, BitSet> storeViews = new ConcurrentHashMap<>();
+
+    private PromotionSnapshot(final long stamp,
+                              final String version,
+                              final List<Promotion> promotions,
+                              final Map<String, String> oid2version,
+                              final PromotionSnapshot previous)
+    {
+        this.stamp = stamp;
+        this.version = version;
+        this.promotions = List.copyOf(promotions);
+        this.oid2version = Map.copyOf(oid2version);
+        final Map<String, Promotion> map = new HashMap<>();
+        final Map<String, Integer> positions = new HashMap<>();
+        windows = new PromotionWindow[this.promotions.size()];
+        stores = new ArrayList<>(this.promotions.size());
+        for (int i = 0; i < windows.length; i++) {
+            final var promotion = this.promotions.get(i);
+            map.put(promotion.getOid(), promotion);
+            positions.put(promotion.getOid(), i);
+            final var previousPosition = previous == null ? null
+                            : previous.getPosition(promotion.getOid(), this.oid2version.get(promotion.getOid()));
+            if (previousPosition == null) {
+                windows[i] = new PromotionWindow(promotion);
+                stores.add(PromotionIndex.evalStores(promotion.getSourceConditions()));
+            } else {
+                windows[i] = previous.windows[previousPosition];
+                stores.add(previous.stores.get(previousPosition));
+            }
+        }
+        oid2promotion = Collections.unmodifiableMap(map);
+        oid2position = Collections.unmodifiableMap(positions);
+    }
+
+    public String getVersion()
+    {
+        return version;
+    }
+
+    public List<Promotion> getPromotions()
+    {
+        return promotions;
+    }
+
+    /**
+     * @param dateTime evaluation instant
+     * @return the promotions whose window covers the instant, in the order of
+     *         the snapshot
+     */
+    public List<Promotion> getPromotions(final OffsetDateTime dateTime)
+    {
+        return getPromotions(dateTime, null);
+    }
+
+    /**
+     * @param dateTime evaluation instant
+     * @param storeIdentifier identifier of the POS backend, <code>null</code>
+     *            for all stores
+     * @return the promotions whose window covers the instant and that are
+     *         allowed for the store, in the order of the snapshot
+     */
+    public List<Promotion> getPromotions(final OffsetDateTime dateTime,
+                                         final String storeIdentifier)
+    {
+        final var view = storeIdentifier == null ? null : getStoreView(storeIdentifier);
+        final List<Promotion> ret = new ArrayList<>();
+        for (final var position : getBucket(dateTime)) {
+            if ((view == null || view.get(position)) && windows[position].covers(dateTime)) {
+                ret.add(promotions.get(position));
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * For clients that evaluate the promotions later on their own: only the
+     * promotions whose end passed are left out.
+     *
+     * @param dateTime current instant
+     * @return the promotions that did not end before the instant, in the
+     *         order of the snapshot
+     */
+    public List<Promotion> getUnexpiredPromotions(final OffsetDateTime dateTime)
+    {
+        return getUnexpiredPromotions(dateTime, null);
+    }
+
+    /**
+     * @param dateTime current instant
+     * @param storeIdentifier identifier of the POS backend, <code>null</code>
+     *            for all stores
+     * @return the promotions that did not end before the instant and that are
+     *         allowed for the store, in the order of the snapshot
+     */
+    public List<Promotion> getUnexpiredPromotions(final OffsetDateTime dateTime,
+                                                  final String storeIdentifier)
+    {
+        final var view = storeIdentifier == null ? null : getStoreView(storeIdentifier);
+        final List<Promotion> ret = new ArrayList<>();
+        for (int i = 0; i < promotions.size(); i++) {
+            if ((view == null || view.get(i)) && !isExpired(promotions.get(i), dateTime)) {
+                ret.add(promotions.get(i));
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @param dateTime current instant
+     * @return oids of the promotions that ended before the instant
+     */
+    public List<String> getExpiredOids(final OffsetDateTime dateTime)
+    {
+        final List<String> ret = new ArrayList<>();
+        for (final var promotion : promotions) {
+            if (isExpired(promotion, dateTime)) {
+                ret.add(promotion.getOid());
+            }
+        }
+        return ret;
+    }
+
+    private static boolean isExpired(final Promotion promotion,
+                                     final OffsetDateTime dateTime)
+    {
+        return promotion.getEndDateTime() != null && promotion.getEndDateTime().isBefore(dateTime);
+    }
+
+    /**
+     * Builds the buckets for the given number of hours in advance.
+     *
+     * @param from instant in the first hour
+     * @param hours number of hours
+     */
+    public void prepareBuckets(final OffsetDateTime from,
+                               final int hours)
+    {
+        for (int i = 0; i < Math.min(hours, MAX_BUCKETS); i++) {
+            getBucket(from.plusHours(i));
+        }
+    }
+
+    public Promotion getPromotion(final String oid)
+    {
+        return oid2promotion.get(oid);
+    }
+
+    public String getPromotionVersion(final String oid)
+    {
+        return oid2version.get(oid);
+    }
+
+    public PromotionIndex getIndex()
+    {
+        var ret = index;
+        if (ret == null) {
+            synchronized (this) {
+                ret = index;
+                if (ret == null) {
+                    ret = new PromotionIndex(promotions, windows);
+                    index = ret;
+                }
+            }
+        }
+        return ret;
+    }
+
+    public boolean isVersion(final String version)
+    {
+        return this.version.equals(version);
+    }
+
+    /**
+     * @return the position of the promotion if this snapshot contains it in
+     *         the given version, else <code>null</code>
+     */
+    private Integer getPosition(final String oid,
+                                final String promotionVersion)
+    {
+        return promotionVersion != null && promotionVersion.equals(oid2version.get(oid))
+                        ? oid2position.get(oid) : null;
+    }
+
+    private BitSet getStoreView(final String storeIdentifier)
+    {
+        return storeViews.computeIfAbsent(storeIdentifier, identifier -> {
+            final var ret = new BitSet(promotions.size());
+            for (int i = 0; i < promotions.size(); i++) {
+                if (stores.get(i) == null || stores.get(i).contains(identifier)) {
+                    ret.set(i);
+                }
+            }
+            return ret;
+        });
+    }
+
+    private int[] getBucket(final OffsetDateTime dateTime)
+    {
+        final var hour = Math.floorDiv(dateTime.toEpochSecond(), 3600);
+        // the offset decides the local date and time of the hour
+        final var key = hour + "|" + dateTime.getOffset().getId();
+        var ret = buckets.get(key);
+        if (ret == null) {
+            final var from = OffsetDateTime.ofInstant(Instant.ofEpochSecond(hour * 3600), dateTime.getOffset());
+            final var to = from.plusHours(1).minusNanos(1);
+            final List<Integer> positions = new ArrayList<>();
+            for (int i = 0; i < windows.length; i++) {
+                if (windows[i].intersects(from, to)) {
+                    positions.add(i);
+                }
+            }
+            ret = positions.stream().mapToInt(Integer::intValue).toArray();
+            if (buckets.size() >= MAX_BUCKETS) {
+                buckets.clear();
+            }
+            buckets.put(key, ret);
+        }
+        return ret;
+    }
+
+    public static PromotionSnapshot get(final Long companyId)
+    {
+        return SNAPSHOTS.get(companyId);
+    }
+
+    /**
+     * @return stamp to be taken before the promotions of a snapshot are read
+     */
+    public static long nextStamp()
+    {
+        return STAMPS.incrementAndGet();
+    }
+
+    /**
+     * A load that was slower than one started after it must not replace the
+     * newer snapshot, so the snapshot is only published if no snapshot with a
+     * later stamp exists.
+     *
+     * @param companyId id of the company
+     * @param stamp stamp taken by {@link #nextStamp()} before reading
+     * @param version version of the snapshot
+     * @param promotions promotions of the snapshot
+     * @param oid2version version of each promotion
+     * @return the published snapshot, or the newer one that was kept
+     */
+    public static PromotionSnapshot publish(final Long companyId,
+                                            final long stamp,
+                                            final String version,
+                                            final List<Promotion> promotions,
+                                            final Map<String, String> oid2version)
+    {
+        final var snapshot = new PromotionSnapshot(stamp, version, promotions, oid2version,
+                        SNAPSHOTS.get(companyId));
+        return SNAPSHOTS.compute(companyId,
+                        (key, existing) -> existing != null && existing.stamp > stamp ? existing : snapshot);
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.esjp.promotions.cache;
+
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.OffsetDateTime;
+import java.time.OffsetTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.efaps.admin.program.esjp.EFapsApplication;
+import org.efaps.admin.program.esjp.EFapsUUID;
+import org.efaps.promotionengine.condition.DateCondition;
+import org.efaps.promotionengine.condition.TimeCondition;
+import org.efaps.promotionengine.promotion.Promotion;
+
+/**
+ * The times a promotion can be valid at: its start and end and the ranges of
+ * the date and time conditions among its source conditions. Conditions nested
+ * in an OrCondition are not taken into account, so the window never excludes
+ * a time the engine would accept. All bounds are inclusive, a time range whose
+ * start is after its end spans midnight.
+ */
+@EFapsUUID("e2afd6fe-9219-4508-8951-59cf93b2e22a")
+@EFapsApplication("eFapsApp-Promotions")
+public final class PromotionWindow
+{
+
+    private final OffsetDateTime startDateTime;
+
+    private final OffsetDateTime endDateTime;
+
+    /** Ranges per date condition, each condition must be met by one of them. */
+    private final List<List<LocalDate[]>> dateRanges = new ArrayList<>();
+
+    /** Ranges per time condition, each condition must be met by one of them. */
+    private final List<List<OffsetTime[]>> timeRanges = new ArrayList<>();
+
+    public PromotionWindow(final Promotion promotion)
+    {
+        startDateTime = promotion.getStartDateTime();
+        endDateTime = promotion.getEndDateTime();
+        if (promotion.getSourceConditions() != null) {
+            for (final var condition : promotion.getSourceConditions()) {
+                if (condition instanceof final DateCondition dateCondition && dateCondition.getRanges() != null
+                                && !dateCondition.getRanges().isEmpty()) {
+                    final List<LocalDate[]> ranges = new ArrayList<>();
+                    for (final var range : dateCondition.getRanges()) {
+                        ranges.add(new LocalDate[] { range.getStartDate(), range.getEndDate() });
+                    }
+                    dateRanges.add(ranges);
+                } else if (condition instanceof final TimeCondition timeCondition
+                                && timeCondition.getRanges() != null && !timeCondition.getRanges().isEmpty()) {
+                    final List<OffsetTime[]> ranges = new ArrayList<>();
+                    for (final var range : timeCondition.getRanges()) {
+                        ranges.add(new OffsetTime[] { range.getStartTime(), range.getEndTime() });
+                    }
+                    timeRanges.add(ranges);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param dateTime instant to check
+     * @return <code>true</code> if the promotion can be valid at the instant
+     */
+    public boolean covers(final OffsetDateTime dateTime)
+    {
+        return intersects(dateTime, dateTime);
+    }
+
+    /**
+     * @param from first instant of the period
+     * @param to last instant of the period, at most one day after from
+     * @return <code>true</code> if the promotion can be valid at some instant
+     *         of the period
+     */
+    public boolean intersects(final OffsetDateTime from,
+                              final OffsetDateTime to)
+    {
+        boolean ret = (startDateTime == null || !to.isBefore(startDateTime))
+                        && (endDateTime == null || !from.isAfter(endDateTime));
+        for (final var ranges : dateRanges) {
+            if (!ret) {
+                break;
+            }
+            ret = false;
+            for (final var range : ranges) {
+                if ((range[0] == null || !to.toLocalDate().isBefore(range[0]))
+                                && (range[1] == null || !from.toLocalDate().isAfter(range[1]))) {
+                    ret = true;
+                    break;
+                }
+            }
+        }
+        for (final var ranges : timeRanges) {
+            if (!ret) {
+                break;
+            }
+            ret = false;
+            for (final var range : ranges) {
+                if (range[0] == null || range[1] == null) {
+                    ret = true;
+                    break;
+                }
+                final var offset = range[0].getOffset();
+                final var fromTime = from.withOffsetSameInstant(offset).toLocalTime();
+                final var toTime = to.withOffsetSameInstant(offset).toLocalTime();
+                final var start = range[0].toLocalTime();
+                final var end = range[1].withOffsetSameInstant(offset).toLocalTime();
+                // two ranges on a clock overlap if one contains the start of the other
+                if (contains(start, end, fromTime) || contains(fromTime, toTime, start)) {
+                    ret = true;
+                    break;
+                }
+            }
+        }
+        return ret;
+    }
+
+    private static boolean contains(final LocalTime start,
+                                    final LocalTime end,
+                                    final LocalTime time)
+    {
+        return start.isAfter(end)
+                        ? !time.isBefore(start) || !time.isAfter(end)
+                        : !time.isBefore(start) && !time.isAfter(end);
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.esjp.promotions.cache;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.efaps.admin.program.esjp.EFapsApplication;
+import org.efaps.admin.program.esjp.EFapsUUID;
+import org.efaps.util.EFapsException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs a load as a single flight: on this node only one thread per key loads,
+ * and a {@link Slot} shared between the nodes keeps other nodes from loading
+ * concurrently. Every other caller keeps working with its stale value until
+ * the new one is available. Only if there is no stale value a caller waits
+ * for the running load, at most for the given timeout.
+ *
+ * @param <T> type of the loaded value
+ */
+@EFapsUUID("c405772b-7a21-4efc-a145-becfb09f0626")
+@EFapsApplication("eFapsApp-Promotions")
+public class SingleFlight<T>
+{
+
+    private static final Logger LOG = LoggerFactory.getLogger(SingleFlight.class);
+
+    /** Running loads of this node by key. */
+    private final Map<Long, CompletableFuture<T>> flights = new ConcurrentHashMap<>();
+
+    private final long awaitTimeout;
+
+    private final TimeUnit awaitUnit;
+
+    public SingleFlight(final long awaitTimeout,
+                        final TimeUnit awaitUnit)
+    {
+        this.awaitTimeout = awaitTimeout;
+        this.awaitUnit = awaitUnit;
+    }
+
+    /**
+     * @param key key of the load, e.g. the company id
+     * @param stale the value currently in use, may be <code>null</code>
+     * @param slot marker shared between the nodes
+     * @param loader loads the value, called with <code>true</code> if the slot
+     *            was acquired
+     * @return the loaded value, the stale value if another load is running or
+     *         failed, or <code>null</code> if waiting for another load failed
+     * @throws EFapsException if the load failed and there is no stale value
+     */
+    public T run(final Long key,
+                 final T stale,
+                 final Slot slot,
+                 final Loader<T> loader)
+        throws EFapsException
+    {
+        final var flight = new CompletableFuture<T>();
+        final var running = flights.putIfAbsent(key, flight);
+        if (running != null) {
+            return stale == null ? await(running) : stale;
+        }
+        var ret = stale;
+        try {
+            final var owner = slot.acquire();
+            if (owner || stale == null) {
+                try {
+                    ret = loader.load(owner);
+                } finally {
+                    if (owner) {
+                        slot.release();
+                    }
+                }
+            } else {
+                LOG.info("Loaded by another node, keeping the stale value for {}", key);
+            }
+        } catch (final EFapsException e) {
+            flight.completeExceptionally(e);
+            if (stale == null) {
+                throw e;
+            }
+            LOG.error("Reloading failed, keeping the stale value for {}", key, e);
+        } catch (final RuntimeException e) {
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            flights.remove(key, flight);
+            if (!flight.isDone()) {
+                flight.complete(ret);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @param key key of the load
+     * @return <code>true</code> if a load is running on this node
+     */
+    public boolean isRunning(final Long key)
+    {
+        return flights.containsKey(key);
+    }
+
+    private T await(final CompletableFuture<T> running)
+    {
+        T ret = null;
+        try {
+            ret = running.get(awaitTimeout, awaitUnit);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (final ExecutionException | TimeoutException e) {
+            LOG.error("Waiting for the running load failed", e);
+        }
+        return ret;
+    }
+
+    /**
+     * Marker that allows only one node at a time to load.
+     */
+    public interface Slot
+    {
+
+        /**
+         * @return <code>true</code> if the slot was free and is now held
+         */
+        boolean acquire();
+
+        void release();
+    }
+
+    public interface Loader<T>
+    {
+
+        /**
+         * @param owner <code>true</code> if this node holds the slot
+         * @return the loaded value
+         * @throws EFapsException on error
+         */
+        T load(boolean owner)
+            throws EFapsException;
+    }
+}
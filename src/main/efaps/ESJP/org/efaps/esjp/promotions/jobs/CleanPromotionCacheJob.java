@@ -50,6 +50,8 @@ public class CleanPromotionCacheJob
             }
             // remove the company to be sure
             Context.getThreadContext().setCompany(null);
+            new WarmPromotionCacheJob().warmUp(Context.getThreadContext().getPerson().getName(),
+                            Context.getThreadContext().getPerson().getCompanies());
         } catch (final EFapsException e) {
             LOG.error("Catched", e);
         }
@@ -16,7 +16,6 @@
 package org.efaps.esjp.promotions.jobs;
 
 import java.time.OffsetDateTime;
-import java.time.temporal.ChronoUnit;
 
 import org.efaps.admin.event.Parameter;
 import org.efaps.admin.program.esjp.EFapsApplication;
@@ -60,30 +59,33 @@ public class DeactivatePromotionJob
         }
     }
 
+    /**
+     * Sets the promotions whose end passed to inactive. Only the expired
+     * promotions are read. Until then they stay in the cached snapshot, but
+     * the PromotionService leaves them out of the promotions it hands to
+     * calculations and clients once their end passed.
+     */
     public void deactivatePromotion(final Parameter parameter)
         throws EFapsException
     {
-
+        final var now = OffsetDateTime.now();
         final var eval = EQL.builder().print()
                         .query(CIPromo.Promotion)
-                        .where().attribute(CIPromo.Promotion.Status)
-                        .eq(CIPromo.PromotionStatus.Active).select()
+                        .where()
+                        .attribute(CIPromo.Promotion.Status).eq(CIPromo.PromotionStatus.Active)
+                        .and()
+                        .attribute(CIPromo.Promotion.EndDateTime).less(now)
+                        .select()
                         .attribute(CIPromo.Promotion.EndDateTime)
                         .evaluate();
 
         while (eval.next()) {
             final var endDateTime = eval.<OffsetDateTime>get(CIPromo.Promotion.EndDateTime);
-            if (OffsetDateTime.now().isAfter(endDateTime)) {
-                LOG.info("Promotion {} endDateTime of {} passed.", eval.inst(), endDateTime);
-                final var days = ChronoUnit.DAYS.between(endDateTime, OffsetDateTime.now());
-                LOG.info(" {} days have passed for promotion {}", days, eval.inst());
-                if (days > 0) {
-                    EQL.builder()
-                                    .update(eval.inst())
-                                    .set(CIPromo.Promotion.Status, CIPromo.PromotionStatus.Inactive)
-                                    .execute();
-                }
-            }
+            LOG.info("Promotion {} endDateTime of {} passed.", eval.inst(), endDateTime);
+            EQL.builder()
+                            .update(eval.inst())
+                            .set(CIPromo.Promotion.Status, CIPromo.PromotionStatus.Inactive)
+                            .execute();
         }
     }
 
@@ -0,0 +1,117 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.esjp.promotions.jobs;
+
+import java.util.Collection;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.efaps.admin.program.esjp.EFapsApplication;
+import org.efaps.admin.program.esjp.EFapsUUID;
+import org.efaps.admin.user.Company;
+import org.efaps.db.Context;
+import org.efaps.esjp.promotions.PromotionService;
+import org.efaps.esjp.promotions.utils.Promotions;
+import org.efaps.util.EFapsException;
+import org.quartz.Job;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobExecutionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Loads the promotion snapshots of all companies in parallel. Every company
+ * is loaded in a thread of a bounded pool with its own context. Meant to be
+ * scheduled at startup of the node, it is also run by the
+ * {@link CleanPromotionCacheJob} after the cache was cleaned.
+ */
+@EFapsUUID("c412d65c-f585-4534-961e-05fe85f7abe8")
+@EFapsApplication("eFapsApp-Promotions")
+public class WarmPromotionCacheJob
+    implements Job
+{
+
+    private static final Logger LOG = LoggerFactory.getLogger(WarmPromotionCacheJob.class);
+
+    /** Minutes to wait for all companies to be loaded. */
+    private static final long TIMEOUT = 10;
+
+    @Override
+    public void execute(final JobExecutionContext context)
+        throws JobExecutionException
+    {
+        try {
+            warmUp(Context.getThreadContext().getPerson().getName(),
+                            Context.getThreadContext().getPerson().getCompanies());
+        } catch (final EFapsException e) {
+            LOG.error("Catched", e);
+        }
+    }
+
+    /**
+     * @param userName name of the user the contexts are opened for
+     * @param companyIds ids of the companies to be loaded
+     * @throws EFapsException on error
+     */
+    public void warmUp(final String userName,
+                       final Collection<Long> companyIds)
+        throws EFapsException
+    {
+        if (companyIds.isEmpty()) {
+            return;
+        }
+        final var threads = Math.min(companyIds.size(), Integer.parseInt(
+                        String.valueOf(Promotions.ENGINE_CONFIG.get().getOrDefault("Warmup.Threads", "2"))));
+        final var start = System.currentTimeMillis();
+        final var executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        try {
+            for (final Long companyId : companyIds) {
+                executor.execute(() -> warmUp(userName, companyId));
+            }
+            executor.shutdown();
+            if (!executor.awaitTermination(TIMEOUT, TimeUnit.MINUTES)) {
+                LOG.warn("Warming up the promotion cache did not finish within {} minutes", TIMEOUT);
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+        LOG.info("Warmed up the promotion cache for {} companies in {} ms", companyIds.size(),
+                        System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Runs in a thread of the pool, with its own context.
+     */
+    private void warmUp(final String userName,
+                        final Long companyId)
+    {
+        try {
+            Context.begin(userName);
+            try {
+                final var company = Company.get(companyId);
+                Context.getThreadContext().setCompany(company);
+                final var count = new PromotionService().warmCache();
+                LOG.info("Loaded {} promotions for {}", count, company.getName());
+            } finally {
+                Context.rollback();
+            }
+        } catch (final EFapsException | RuntimeException e) {
+            LOG.error("Warming up the promotion cache for company {} failed", companyId, e);
+        }
+    }
+}
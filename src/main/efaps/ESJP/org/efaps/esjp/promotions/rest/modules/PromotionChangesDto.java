@@ -0,0 +1,143 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.esjp.promotions.rest.modules;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.efaps.admin.program.esjp.EFapsApplication;
+import org.efaps.admin.program.esjp.EFapsUUID;
+import org.efaps.promotionengine.promotion.Promotion;
+
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+
+/**
+ * Changes of the active promotions since the version a client has seen. If
+ * the version is unknown all promotions are returned as added and
+ * <code>full</code> is set.
+ */
+@JsonDeserialize(builder = PromotionChangesDto.Builder.class)
+@EFapsUUID("084e347b-1de8-46b0-967e-b5faa304c257")
+@EFapsApplication("eFapsApp-Promotions")
+public class PromotionChangesDto
+{
+
+    private final String version;
+
+    private final boolean full;
+
+    private final List<Promotion> added;
+
+    private final List<Promotion> changed;
+
+    private final List<String> removed;
+
+    private PromotionChangesDto(Builder builder)
+    {
+        this.version = builder.version;
+        this.full = builder.full;
+        this.added = builder.added;
+        this.changed = builder.changed;
+        this.removed = builder.removed;
+    }
+
+    public String getVersion()
+    {
+        return version;
+    }
+
+    public boolean isFull()
+    {
+        return full;
+    }
+
+    public List<Promotion> getAdded()
+    {
+        return added;
+    }
+
+    public List<Promotion> getChanged()
+    {
+        return changed;
+    }
+
+    public List<String> getRemoved()
+    {
+        return removed;
+    }
+
+    /**
+     * @return <code>true</code> if the client is up to date
+     */
+    public boolean isUnchanged()
+    {
+        return !full && added.isEmpty() && changed.isEmpty() && removed.isEmpty();
+    }
+
+    public static Builder builder()
+    {
+        return new Builder();
+    }
+
+    public static final class Builder
+    {
+
+        private String version;
+        private boolean full;
+        private List<Promotion> added = new ArrayList<>();
+        private List<Promotion> changed = new ArrayList<>();
+        private List<String> removed = new ArrayList<>();
+
+        private Builder()
+        {
+        }
+
+        public Builder withVersion(String version)
+        {
+            this.version = version;
+            return this;
+        }
+
+        public Builder withFull(boolean full)
+        {
+            this.full = full;
+            return this;
+        }
+
+        public Builder withAdded(List<Promotion> added)
+        {
+            this.added = added;
+            return this;
+        }
+
+        public Builder withChanged(List<Promotion> changed)
+        {
+            this.changed = changed;
+            return this;
+        }
+
+        public Builder withRemoved(List<String> removed)
+        {
+            this.removed = removed;
+            return this;
+        }
+
+        public PromotionChangesDto build()
+        {
+            return new PromotionChangesDto(this);
+        }
+    }
+}
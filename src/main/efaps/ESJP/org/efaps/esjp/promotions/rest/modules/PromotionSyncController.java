@@ -0,0 +1,88 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.esjp.promotions.rest.modules;
+
+import org.efaps.admin.program.esjp.EFapsApplication;
+import org.efaps.admin.program.esjp.EFapsUUID;
+import org.efaps.esjp.promotions.PromotionService;
+import org.efaps.util.EFapsException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.PathParam;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.core.EntityTag;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+
+/**
+ * Change feed for POS clients that keep their own copy of the promotions. The
+ * client sends the last version it received and gets only the added, changed
+ * and removed promotions, or "304 Not Modified" if it is up to date. The
+ * promotions are the same active set as returned by
+ * {@link PromotionService#getPromotions()}. A POS backend that fetches its
+ * promotions at once gets only the ones its store conditions allow.
+ */
+@EFapsUUID("7739a476-6048-47c3-8d0d-5f807088b1cf")
+@EFapsApplication("eFapsApp-Promotions")
+@Path("/ui/modules/promo-sync")
+public class PromotionSyncController
+{
+
+    private static final Logger LOG = LoggerFactory.getLogger(PromotionSyncController.class);
+
+    @Path("/changes")
+    @GET
+    @Produces({ MediaType.APPLICATION_JSON })
+    public Response getChanges(@QueryParam("version") final String version)
+        throws EFapsException
+    {
+        final var changes = new PromotionService().getPromotionChanges(version);
+        final Response ret;
+        if (changes == null) {
+            // nothing loaded yet, an empty full list would make the client drop its promotions
+            ret = Response.status(Response.Status.SERVICE_UNAVAILABLE).build();
+        } else if (changes.isUnchanged()) {
+            ret = Response.notModified(new EntityTag(changes.getVersion())).build();
+        } else {
+            LOG.info("Sending changes since {}: full: {}, added: {}, changed: {}, removed: {}", version,
+                            changes.isFull(), changes.getAdded().size(), changes.getChanged().size(),
+                            changes.getRemoved().size());
+            ret = Response.ok(changes).tag(changes.getVersion()).build();
+        }
+        return ret;
+    }
+
+    @Path("/backends/{identifier}/promotions")
+    @GET
+    @Produces({ MediaType.APPLICATION_JSON })
+    public Response getPromotions4Backend(@PathParam("identifier") final String identifier)
+        throws EFapsException
+    {
+        final var promotions = new PromotionService().getPromotions4Backend(identifier);
+        final Response ret;
+        if (promotions == null) {
+            ret = Response.status(Response.Status.SERVICE_UNAVAILABLE).build();
+        } else {
+            LOG.info("Sending {} promotions for backend {}", promotions.size(), identifier);
+            ret = Response.ok(promotions).build();
+        }
+        return ret;
+    }
+}
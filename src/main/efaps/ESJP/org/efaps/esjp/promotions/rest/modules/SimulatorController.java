@@ -15,38 +15,47 @@
  */
 package org.efaps.esjp.promotions.rest.modules;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDate;
 import java.time.OffsetDateTime;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Executors;
 
 import org.apache.commons.collections4.CollectionUtils;
-import org.apache.commons.lang3.EnumUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.efaps.abacus.api.IConfig;
-import org.efaps.abacus.api.ITax;
-import org.efaps.abacus.api.TaxType;
 import org.efaps.admin.event.Parameter;
 import org.efaps.admin.program.esjp.EFapsApplication;
 import org.efaps.admin.program.esjp.EFapsUUID;
+import org.efaps.admin.user.Company;
 import org.efaps.db.Context;
 import org.efaps.db.Instance;
 import org.efaps.eql.EQL;
-import org.efaps.eql2.StmtFlag;
-import org.efaps.esjp.ci.CIPOS;
 import org.efaps.esjp.ci.CIProducts;
 import org.efaps.esjp.ci.CISales;
 import org.efaps.esjp.common.parameter.ParameterUtil;
-import org.efaps.esjp.db.InstanceUtils;
-import org.efaps.esjp.products.util.Products;
+import org.efaps.esjp.common.serialization.SerializationUtil;
 import org.efaps.esjp.promotions.PromotionService;
+import org.efaps.esjp.promotions.utils.BackendRegistry;
+import org.efaps.esjp.promotions.utils.ProductPriceCache;
+import org.efaps.esjp.promotions.utils.ProductSearchIndex;
 import org.efaps.esjp.promotions.utils.Promotions;
 import org.efaps.esjp.sales.CalculatorConfig;
 import org.efaps.esjp.sales.PriceUtil;
-import org.efaps.esjp.sales.tax.Tax;
-import org.efaps.esjp.sales.tax.TaxCat_Base;
 import org.efaps.promotionengine.PromotionsConfiguration;
 import org.efaps.promotionengine.api.IDocument;
 import org.efaps.promotionengine.condition.StoreCondition;
@@ -59,6 +68,9 @@ import org.joda.time.DateTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.fasterxml.jackson.databind.MappingIterator;
+
+import jakarta.ws.rs.Consumes;
 import jakarta.ws.rs.GET;
 import jakarta.ws.rs.POST;
 import jakarta.ws.rs.Path;
@@ -67,6 +79,7 @@ import jakarta.ws.rs.Produces;
 import jakarta.ws.rs.QueryParam;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.StreamingOutput;
 
 @EFapsUUID("49bda9f9-bbaf-4153-91be-04345112e00b")
 @EFapsApplication("eFapsApp-Promotions")
@@ -76,6 +89,16 @@ public class SimulatorController
 
     private static final Logger LOG = LoggerFactory.getLogger(SimulatorController.class);
 
+    private static final String NDJSON = "application/x-ndjson";
+
+    private static final int SEARCH_LIMIT = 100;
+
+    /** Seconds a search result is kept. */
+    private static final long SEARCH_LIFESPAN = 30;
+
+    /** Recent search results by company and lower case term. */
+    private static final Map<String, Search> SEARCHES = new ConcurrentHashMap<>();
+
     @Path("/products")
     @GET
     @Produces({ MediaType.APPLICATION_JSON })
@@ -85,30 +108,79 @@ public class SimulatorController
         LOG.info("Searching for products with: {}", term);
 
         final var dtos = new ArrayList<SimulatorProductDto>();
-        //
-        final var productEval = EQL.builder().print().query(CIProducts.ProductStandart)
-                        .where()
-                        .attribute(CIProducts.ProductStandart.Name).ilike(term + '%').or()
-                        .attribute(CIProducts.ProductStandart.Description).ilike(term + '%')
-                        .select()
-                        .attribute(CIProducts.ProductStandart.Name, CIProducts.ProductStandart.Description)
-                        .limit(100)
-                        .evaluate();
-        while (productEval.next()) {
-            final Parameter parameter = ParameterUtil.instance();
-            final var prodPrice = new PriceUtil().getPrice(parameter, DateTime.now(), productEval.inst(),
-                            CIProducts.ProductPricelistRetail.uuid, "DefaultPosition", false);
-
+        final var hits = searchProducts(term);
+        // prices and tax categories of the whole page at once
+        final var prices = ProductPriceCache.get(hits.stream().map(hit -> hit[0]).toList(),
+                        CIProducts.ProductPricelistRetail.uuid, DateTime.now());
+        for (final var hit : hits) {
+            final var productPrice = prices.get(hit[0]);
             dtos.add(SimulatorProductDto.builder()
-                            .withOid(productEval.inst().getOid())
-                            .withName(productEval.get(CIProducts.ProductStandart.Name))
-                            .withDescription(productEval.get(CIProducts.ProductStandart.Description))
-                            .withNetUnitPrice(prodPrice.getCurrentPrice())
+                            .withOid(hit[0])
+                            .withName(hit[1])
+                            .withDescription(hit[2])
+                            .withNetUnitPrice(productPrice.getNetUnitPrice())
                             .build());
         }
         return Response.ok(dtos).build();
     }
 
+    /**
+     * Results are kept for {@link #SEARCH_LIFESPAN} seconds. If a result with
+     * less than {@link #SEARCH_LIMIT} hits exists for a prefix of the term it
+     * contains all matches, and the result for the term is filtered from it
+     * instead of being queried again. If activated the in memory
+     * {@link ProductSearchIndex} is used instead, it also matches single
+     * words of name and description.
+     *
+     * @return oid, name and description of the matching products
+     */
+    protected List<String[]> searchProducts(final String term)
+        throws EFapsException
+    {
+        if (Promotions.PRODUCT_SEARCH_INDEX.get()) {
+            return ProductSearchIndex.get().search(term, SEARCH_LIMIT);
+        }
+        final var companyId = Context.getThreadContext().getCompany().getId();
+        final var lowerTerm = StringUtils.lowerCase(term, Locale.ROOT);
+        final var now = System.currentTimeMillis();
+        if (SEARCHES.size() > 1000) {
+            SEARCHES.values().removeIf(search -> now - search.time > SEARCH_LIFESPAN * 1000);
+        }
+        List<String[]> ret = null;
+        // wildcards of ilike can not be filtered locally
+        if (lowerTerm != null && !StringUtils.containsAny(lowerTerm, '%', '_')) {
+            for (int i = lowerTerm.length(); i > 0 && ret == null; i--) {
+                final var search = SEARCHES.get(companyId + "|" + lowerTerm.substring(0, i));
+                if (search != null && now - search.time <= SEARCH_LIFESPAN * 1000
+                                && (i == lowerTerm.length() || search.hits.size() < SEARCH_LIMIT)) {
+                    ret = search.hits.stream()
+                                    .filter(hit -> StringUtils.startsWithIgnoreCase(hit[1], lowerTerm)
+                                                    || StringUtils.startsWithIgnoreCase(hit[2], lowerTerm))
+                                    .toList();
+                }
+            }
+        }
+        if (ret == null) {
+            final List<String[]> hits = new ArrayList<>();
+            final var productEval = EQL.builder().print().query(CIProducts.ProductStandart)
+                            .where()
+                            .attribute(CIProducts.ProductStandart.Name).ilike(term + '%').or()
+                            .attribute(CIProducts.ProductStandart.Description).ilike(term + '%')
+                            .select()
+                            .attribute(CIProducts.ProductStandart.Name, CIProducts.ProductStandart.Description)
+                            .limit(SEARCH_LIMIT)
+                            .evaluate();
+            while (productEval.next()) {
+                hits.add(new String[] { productEval.inst().getOid(),
+                                productEval.get(CIProducts.ProductStandart.Name),
+                                productEval.get(CIProducts.ProductStandart.Description) });
+            }
+            SEARCHES.put(companyId + "|" + lowerTerm, new Search(now, hits));
+            ret = hits;
+        }
+        return ret;
+    }
+
     @Path("/promotions/{oid}")
     @GET
     @Produces({ MediaType.APPLICATION_JSON })
@@ -137,18 +209,12 @@ public class SimulatorController
     {
         if (Promotions.STORECOND_ACTIVATE.get()) {
             final var dtos = new ArrayList<SimulatorPOSBackendDto>();
-            final var eval = EQL.builder().print().query(CIPOS.BackendAbstract)
-                            .where().attribute(CIPOS.BackendAbstract.StatusAbstract).eq(CIPOS.BackendStatus.Active)
-                            .select()
-                            .attribute(CIPOS.BackendAbstract.Name, CIPOS.BackendAbstract.Description,
-                                            CIPOS.BackendAbstract.Identifier)
-                            .evaluate();
-            while (eval.next()) {
+            for (final var backend : BackendRegistry.get().getActiveBackends()) {
                 dtos.add(SimulatorPOSBackendDto.builder()
-                                .withOid(eval.inst().getOid())
-                                .withName(eval.get(CIPOS.BackendAbstract.Name))
-                                .withIdentifier(eval.get(CIPOS.BackendAbstract.Identifier))
-                                .withDescription(eval.get(CIPOS.BackendAbstract.Description))
+                                .withOid(backend.getOid())
+                                .withName(backend.getName())
+                                .withIdentifier(backend.getIdentifier())
+                                .withDescription(backend.getDescription())
                                 .build());
             }
             return Response.ok(dtos).build();
@@ -164,9 +230,124 @@ public class SimulatorController
         throws EFapsException
     {
         LOG.info("CalculateRequestDto: {}", dto);
+        final var document = evalDocument(dto);
+        final var result = calculate(document, dto.getDate(), dto.getPromotionOids(), dto.getPosBackendOid());
+        LOG.info("result: {}", result);
 
-        final Parameter parameter = ParameterUtil.instance();
-        final var taxMap = new HashMap<String, Tax>();
+        return Response.ok(result).build();
+    }
+
+    /**
+     * Calculates many baskets in one call. The input is either a JSON array
+     * of requests or newline delimited JSON. The baskets are calculated in
+     * parallel and every result is written as one line as soon as it is
+     * finished, with the index of the request in the input. Only a bounded
+     * number of requests is read ahead, so memory does not depend on the
+     * size of the input.
+     */
+    @Path("/calculate/batch")
+    @POST
+    @Consumes({ MediaType.APPLICATION_JSON, NDJSON })
+    @Produces({ NDJSON })
+    public Response calculateBatch(final InputStream input)
+        throws EFapsException
+    {
+        final var userName = Context.getThreadContext().getPerson().getName();
+        final var companyId = Context.getThreadContext().getCompany().getId();
+        final StreamingOutput output = out -> calculateBatch(input, out, userName, companyId);
+        return Response.ok(output).build();
+    }
+
+    protected void calculateBatch(final InputStream input,
+                                  final OutputStream output,
+                                  final String userName,
+                                  final Long companyId)
+        throws IOException
+    {
+        final var threads = Integer.parseInt(
+                        String.valueOf(Promotions.ENGINE_CONFIG.get().getOrDefault("Batch.Threads", "4")));
+        final var maxPending = threads * 4;
+        final var objectMapper = SerializationUtil.getObjectMapper();
+        final var executor = Executors.newFixedThreadPool(threads);
+        final var completion = new ExecutorCompletionService<Map<String, Object>>(executor);
+        final var start = System.nanoTime();
+        int count = 0;
+        int pending = 0;
+        try (var writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+                        MappingIterator<CalculateRequestDto> iterator = objectMapper
+                                        .readerFor(CalculateRequestDto.class).readValues(input)) {
+            while (iterator.hasNext()) {
+                final var index = count++;
+                final var dto = iterator.next();
+                completion.submit(() -> calculate(index, dto, userName, companyId));
+                pending++;
+                if (pending >= maxPending) {
+                    writeResult(writer, completion);
+                    pending--;
+                }
+            }
+            while (pending > 0) {
+                writeResult(writer, completion);
+                pending--;
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        LOG.info("Calculated {} baskets in {} ms", count, (System.nanoTime() - start) / 1_000_000);
+    }
+
+    private void writeResult(final BufferedWriter writer,
+                             final ExecutorCompletionService<Map<String, Object>> completion)
+        throws IOException
+    {
+        try {
+            writer.write(SerializationUtil.getObjectMapper().writeValueAsString(completion.take().get()));
+            writer.newLine();
+            writer.flush();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (final ExecutionException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Runs in a thread of the batch, with its own context.
+     */
+    private Map<String, Object> calculate(final int index,
+                                          final CalculateRequestDto dto,
+                                          final String userName,
+                                          final Long companyId)
+    {
+        final Map<String, Object> ret = new LinkedHashMap<>();
+        ret.put("index", index);
+        try {
+            Context.begin(userName);
+            try {
+                Context.getThreadContext().setCompany(Company.get(companyId));
+                final var document = evalDocument(dto);
+                ret.put("document", calculate(document, dto.getDate(), dto.getPromotionOids(),
+                                dto.getPosBackendOid()));
+            } finally {
+                Context.rollback();
+            }
+        } catch (final EFapsException | RuntimeException e) {
+            LOG.error("Calculation of basket {} failed", index, e);
+            ret.put("error", String.valueOf(e.getMessage()));
+        }
+        return ret;
+    }
+
+    /**
+     * @param dto request
+     * @return document for the calculator, prices and taxes are taken from
+     *         the {@link ProductPriceCache}
+     * @throws EFapsException on error
+     */
+    protected Document evalDocument(final CalculateRequestDto dto)
+        throws EFapsException
+    {
         final var document = new Document();
         // for price just use midday
         DateTime jodaDateTime;
@@ -176,67 +357,22 @@ public class SimulatorController
         } else {
             jodaDateTime = DateTime.now();
         }
+        // resolve the products of all positions of the request at once
+        final var prices = ProductPriceCache.get(dto.getItems().stream()
+                        .map(CalculateRequestPositionDto::getProductOid)
+                        .toList(), CIProducts.ProductPricelistRetail.uuid, jodaDateTime);
         for (final var pos : dto.getItems()) {
-            var prodInst = Instance.get(pos.getProductOid());
-
-            if (Products.ACTIVATEINDIVIDUAL.get()) {
-                if (InstanceUtils.isType(prodInst, CIProducts.ProductBatch)
-                                || InstanceUtils.isType(prodInst, CIProducts.ProductIndividual)) {
-                    final var eval = EQL.builder()
-                                    .with(StmtFlag.REQCACHED)
-                                    .print(prodInst)
-                                    .linkfrom(CIProducts.StoreableProductAbstract2IndividualAbstract.ToAbstract)
-                                    .linkto(CIProducts.StoreableProductAbstract2IndividualAbstract.FromAbstract)
-                                    .instance().first().as("productInst")
-                                    .evaluate();
-                    if (eval.next()) {
-                        final Instance baseProductInst = eval.get("productInst");
-                        if (InstanceUtils.isValid(baseProductInst)) {
-                            prodInst = baseProductInst;
-                        }
-                    }
-                }
-            }
-
-            final var prodPrice = new PriceUtil().getPrice(parameter, jodaDateTime, prodInst,
-                            CIProducts.ProductPricelistRetail.uuid, "DefaultPosition", false);
-
-            final var prodEval = EQL.builder()
-                            .print(prodInst)
-                            .attribute(CIProducts.ProductAbstract.TaxCategory)
-                            .evaluate();
-            prodEval.next();
-
-            final var taxCatId = prodEval.<Long>get(CIProducts.ProductAbstract.TaxCategory);
-            final List<ITax> taxes = TaxCat_Base.get(taxCatId).getTaxes().stream()
-                            .map(tax -> {
-                                try {
-                                    taxMap.put(tax.getName(), tax);
-
-                                    return (ITax) new org.efaps.abacus.pojo.Tax()
-                                                    .setKey(tax.getName())
-                                                    .setPercentage(tax.getFactor().multiply(new BigDecimal("100")))
-                                                    .setAmount(tax.getAmount())
-                                                    .setType(EnumUtils.getEnum(TaxType.class, tax.getTaxType().name()));
-                                } catch (final EFapsException e) {
-                                    LOG.error("Catched", e);
-                                }
-                                return null;
-                            })
-                            .toList();
-
+            final var productPrice = prices.get(pos.getProductOid());
             document.addPosition(new Position()
                             .setIndex(pos.getIndex())
-                            .setNetUnitPrice(prodPrice.getCurrentPrice())
-                            .setTaxes(taxes)
-                            .setProductOid(prodInst.getOid())
-                            .setStandInOid(pos.getProductOid().equals(prodInst.getOid())? null : pos.getProductOid())
+                            .setNetUnitPrice(productPrice.getNetUnitPrice())
+                            .setTaxes(productPrice.getTaxes())
+                            .setProductOid(productPrice.getProductOid())
+                            .setStandInOid(pos.getProductOid().equals(productPrice.getProductOid()) ? null
+                                            : pos.getProductOid())
                             .setQuantity(pos.getQuantity()));
         }
-        final var result = calculate(document, dto.getDate(), dto.getPromotionOids(), dto.getPosBackendOid());
-        LOG.info("result: {}", result);
-
-        return Response.ok(result).build();
+        return document;
     }
 
     protected BigDecimal evalNetUnitPrice(final Instance prodInst,
@@ -258,17 +394,6 @@ public class SimulatorController
         throws EFapsException
     {
         final var calculator = new org.efaps.promotionengine.Calculator(getConfig());
-        final List<Promotion> promotions;
-        final var promotionService = new PromotionService();
-        if (CollectionUtils.isNotEmpty(promotionOids)) {
-            promotions = new ArrayList<>();
-            for (final var promotionOid : promotionOids) {
-                promotions.add(promotionService.getPromotion(Instance.get(promotionOid)));
-            }
-        } else {
-            promotions = promotionService.getPromotions();
-        }
-
         final var promoConfig = new PromotionsConfiguration();
         if (localDate != null) {
             promoConfig.setEvaluationDateTime(
@@ -280,9 +405,28 @@ public class SimulatorController
         }
         final var rule = (String) Promotions.ENGINE_CONFIG.get().getOrDefault("EngineRule", "PRIORITY");
         promoConfig.setEngineRule(EngineRule.valueOf(rule));
+        final var data = evalData(posBackendOid);
+
+        final List<Promotion> promotions;
+        final var promotionService = new PromotionService();
+        if (CollectionUtils.isNotEmpty(promotionOids)) {
+            promotions = new ArrayList<>();
+            for (final var promotionOid : promotionOids) {
+                promotions.add(promotionService.getPromotion(Instance.get(promotionOid)));
+            }
+        } else if (Promotions.CALCULATOR_INDEX.get()) {
+            final var index = promotionService.getPromotionIndex();
+            promotions = index == null ? null
+                            : index.getCandidates(document, data, promoConfig.getEvaluationDateTime());
+        } else {
+            final var dateTime = promoConfig.getEvaluationDateTime() == null
+                            ? OffsetDateTime.now(Context.getThreadContext().getZoneId())
+                            : promoConfig.getEvaluationDateTime();
+            promotions = promotionService.getPromotions(dateTime, (String) data.get(StoreCondition.KEY));
+        }
         LOG.info("Calculating with EngineRule: {} - DateTime: {}", promoConfig.getEngineRule(),
                         promoConfig.getEvaluationDateTime());
-        calculator.calc(document, promotions, evalData(posBackendOid), promoConfig);
+        calculator.calc(document, promotions, data, promoConfig);
         return document;
     }
 
@@ -291,12 +435,9 @@ public class SimulatorController
     {
         final Map<String, Object> map = new HashMap<>();
         if (posBackendOid != null) {
-            final var posBackendEval = EQL.builder().print(posBackendOid)
-                            .attribute(CIPOS.BackendAbstract.Identifier)
-                            .evaluate();
-
-            if (posBackendEval.next()) {
-                map.put(StoreCondition.KEY, posBackendEval.get(CIPOS.BackendAbstract.Identifier));
+            final var backend = BackendRegistry.get().getBackend(posBackendOid);
+            if (backend != null) {
+                map.put(StoreCondition.KEY, backend.getIdentifier());
             }
         }
         return map;
@@ -306,4 +447,18 @@ public class SimulatorController
     {
         return new CalculatorConfig(CISales.Invoice.getType().getName());
     }
+
+    private static class Search
+    {
+
+        private final long time;
+        private final List<String[]> hits;
+
+        Search(final long time,
+               final List<String[]> hits)
+        {
+            this.time = time;
+            this.hits = hits;
+        }
+    }
 }
@@ -0,0 +1,178 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.esjp.promotions.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.efaps.admin.datamodel.Status;
+import org.efaps.admin.program.esjp.EFapsApplication;
+import org.efaps.admin.program.esjp.EFapsUUID;
+import org.efaps.db.Context;
+import org.efaps.eql.EQL;
+import org.efaps.esjp.ci.CIPOS;
+import org.efaps.util.EFapsException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registry of the POS backends of a company, loaded with one query and kept
+ * in memory. The backends belong to the POS application that does not notify
+ * about changes, so the registry is reloaded after {@link #LIFESPAN} minutes
+ * or on {@link #refresh()}.
+ */
+@EFapsUUID("204b7c99-fe4e-4174-93ee-25f6beb64600")
+@EFapsApplication("eFapsApp-Promotions")
+public final class BackendRegistry
+{
+
+    private static final Logger LOG = LoggerFactory.getLogger(BackendRegistry.class);
+
+    /** Minutes until the backends are reloaded. */
+    private static final long LIFESPAN = 30;
+
+    private static final Map<Long, BackendRegistry> REGISTRIES = new ConcurrentHashMap<>();
+
+    private final long loaded = System.currentTimeMillis();
+
+    private final Map<String, Backend> backends;
+
+    private BackendRegistry(final Map<String, Backend> backends)
+    {
+        this.backends = Collections.unmodifiableMap(backends);
+    }
+
+    /**
+     * @param oid oid of the backend
+     * @return the backend, <code>null</code> if not found
+     */
+    public Backend getBackend(final String oid)
+    {
+        return oid == null ? null : backends.get(oid);
+    }
+
+    /**
+     * @return the active backends in the order they were read
+     */
+    public List<Backend> getActiveBackends()
+    {
+        final List<Backend> ret = new ArrayList<>();
+        for (final var backend : backends.values()) {
+            if (backend.isActive()) {
+                ret.add(backend);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return the registry of the current company
+     * @throws EFapsException on error
+     */
+    public static BackendRegistry get()
+        throws EFapsException
+    {
+        final var companyId = Context.getThreadContext().getCompany().getId();
+        var ret = REGISTRIES.get(companyId);
+        if (ret == null || System.currentTimeMillis() - ret.loaded > TimeUnit.MINUTES.toMillis(LIFESPAN)) {
+            ret = load();
+            REGISTRIES.put(companyId, ret);
+        }
+        return ret;
+    }
+
+    /**
+     * Drops the registries of all companies, they are reloaded on next use.
+     */
+    public static void refresh()
+    {
+        REGISTRIES.clear();
+    }
+
+    private static BackendRegistry load()
+        throws EFapsException
+    {
+        final var activeId = Status.find(CIPOS.BackendStatus.Active).getId();
+        final Map<String, Backend> backends = new LinkedHashMap<>();
+        final var eval = EQL.builder().print().query(CIPOS.BackendAbstract)
+                        .select()
+                        .attribute(CIPOS.BackendAbstract.Name, CIPOS.BackendAbstract.Description,
+                                        CIPOS.BackendAbstract.Identifier, CIPOS.BackendAbstract.StatusAbstract)
+                        .evaluate();
+        while (eval.next()) {
+            final var oid = eval.inst().getOid();
+            backends.put(oid, new Backend(oid, eval.get(CIPOS.BackendAbstract.Name),
+                            eval.get(CIPOS.BackendAbstract.Description),
+                            eval.get(CIPOS.BackendAbstract.Identifier),
+                            Long.valueOf(activeId).equals(eval.get(CIPOS.BackendAbstract.StatusAbstract))));
+        }
+        LOG.info("Loaded {} POS backends", backends.size());
+        return new BackendRegistry(backends);
+    }
+
+    public static final class Backend
+    {
+
+        private final String oid;
+        private final String name;
+        private final String description;
+        private final String identifier;
+        private final boolean active;
+
+        private Backend(final String oid,
+                        final String name,
+                        final String description,
+                        final String identifier,
+                        final boolean active)
+        {
+            this.oid = oid;
+            this.name = name;
+            this.description = description;
+            this.identifier = identifier;
+            this.active = active;
+        }
+
+        public String getOid()
+        {
+            return oid;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public String getDescription()
+        {
+            return description;
+        }
+
+        public String getIdentifier()
+        {
+            return identifier;
+        }
+
+        public boolean isActive()
+        {
+            return active;
+        }
+    }
+}
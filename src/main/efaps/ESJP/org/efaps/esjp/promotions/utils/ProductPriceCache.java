@@ -0,0 +1,314 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.esjp.promotions.utils;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.EnumUtils;
+import org.efaps.abacus.api.ITax;
+import org.efaps.abacus.api.TaxType;
+import org.efaps.admin.program.esjp.EFapsApplication;
+import org.efaps.admin.program.esjp.EFapsUUID;
+import org.efaps.db.Context;
+import org.efaps.db.Instance;
+import org.efaps.eql.EQL;
+import org.efaps.esjp.ci.CIProducts;
+import org.efaps.esjp.common.parameter.ParameterUtil;
+import org.efaps.esjp.db.InstanceUtils;
+import org.efaps.esjp.products.util.Products;
+import org.efaps.esjp.sales.PriceUtil;
+import org.efaps.esjp.sales.tax.TaxCat_Base;
+import org.efaps.util.EFapsException;
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Node local cache for the price and taxes of products as used by the
+ * simulator, keyed by company, product, price list and date. The number of
+ * entries is bounded (least recently used are dropped first) and entries
+ * expire after {@link #LIFESPAN} minutes, as changes of price lists are not
+ * notified to this application. {@link #invalidate()} drops everything, e.g.
+ * after a price list was updated. The taxes are built once per tax category.
+ */
+@EFapsUUID("1bb2dee0-d07d-4777-8a66-768d1111cd72")
+@EFapsApplication("eFapsApp-Promotions")
+public final class ProductPriceCache
+{
+
+    private static final Logger LOG = LoggerFactory.getLogger(ProductPriceCache.class);
+
+    private static final int MAX_ENTRIES = 50_000;
+
+    /** Minutes an entry is valid. */
+    private static final long LIFESPAN = 10;
+
+    private static final Map<String, ProductPrice> PRICES = new LinkedHashMap<>(1024, 0.75f, true)
+    {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, ProductPrice> eldest)
+        {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private static final Map<String, List<ITax>> TAXES = new ConcurrentHashMap<>();
+
+    /**
+     * Base product by individual or batch product. The relation never changes
+     * once created, so entries are only dropped if the map gets too big.
+     */
+    private static final Map<String, String> BASEPRODUCTS = new ConcurrentHashMap<>();
+
+    private ProductPriceCache()
+    {
+    }
+
+    /**
+     * @param productOid oid of the product, individual products resolve to
+     *            their base product
+     * @param priceList uuid of the price list
+     * @param date date of the price
+     * @return price and taxes of the product
+     * @throws EFapsException on error
+     */
+    public static ProductPrice get(final String productOid,
+                                   final UUID priceList,
+                                   final DateTime date)
+        throws EFapsException
+    {
+        return get(List.of(productOid), priceList, date).get(productOid);
+    }
+
+    /**
+     * The products missing in the cache are loaded together, their tax
+     * categories are read with one query.
+     *
+     * @param productOids oids of the products
+     * @param priceList uuid of the price list
+     * @param date date of the price
+     * @return price and taxes by requested product oid
+     * @throws EFapsException on error
+     */
+    public static Map<String, ProductPrice> get(final Collection<String> productOids,
+                                                final UUID priceList,
+                                                final DateTime date)
+        throws EFapsException
+    {
+        final var keyPrefix = Context.getThreadContext().getCompany().getId() + "|";
+        final var keySuffix = "|" + priceList + "|" + date.toLocalDate();
+        final Map<String, ProductPrice> ret = new HashMap<>();
+        final List<String> missing = new ArrayList<>();
+        synchronized (PRICES) {
+            for (final var productOid : productOids) {
+                final var productPrice = PRICES.get(keyPrefix + productOid + keySuffix);
+                if (productPrice == null || productPrice.isExpired()) {
+                    missing.add(productOid);
+                } else {
+                    ret.put(productOid, productPrice);
+                }
+            }
+        }
+        if (!missing.isEmpty()) {
+            final var loaded = load(missing, priceList, date);
+            synchronized (PRICES) {
+                for (final var entry : loaded.entrySet()) {
+                    PRICES.put(keyPrefix + entry.getKey() + keySuffix, entry.getValue());
+                }
+            }
+            ret.putAll(loaded);
+        }
+        return ret;
+    }
+
+    /**
+     * Resolves individual and batch products to their base product, all
+     * products not known yet with one query.
+     *
+     * @param productOids oids of products
+     * @return base product oid by product oid, products that are no
+     *         individual or batch map to themselves
+     * @throws EFapsException on error
+     */
+    public static Map<String, String> resolveBaseProducts(final Collection<String> productOids)
+        throws EFapsException
+    {
+        final Map<String, String> ret = new HashMap<>();
+        final Map<Long, String> id2oid = new HashMap<>();
+        final var activated = Products.ACTIVATEINDIVIDUAL.get();
+        for (final var productOid : productOids) {
+            final var prodInst = Instance.get(productOid);
+            if (activated && (InstanceUtils.isType(prodInst, CIProducts.ProductBatch)
+                            || InstanceUtils.isType(prodInst, CIProducts.ProductIndividual))) {
+                final var baseOid = BASEPRODUCTS.get(productOid);
+                if (baseOid == null) {
+                    id2oid.put(prodInst.getId(), productOid);
+                } else {
+                    ret.put(productOid, baseOid);
+                }
+            } else {
+                ret.put(productOid, productOid);
+            }
+        }
+        if (!id2oid.isEmpty()) {
+            if (BASEPRODUCTS.size() > MAX_ENTRIES) {
+                BASEPRODUCTS.clear();
+            }
+            final var eval = EQL.builder().print()
+                            .query(CIProducts.StoreableProductAbstract2IndividualAbstract)
+                            .where()
+                            .attribute(CIProducts.StoreableProductAbstract2IndividualAbstract.ToAbstract)
+                            .in(id2oid.keySet().toArray())
+                            .select()
+                            .attribute(CIProducts.StoreableProductAbstract2IndividualAbstract.ToAbstract)
+                            .linkto(CIProducts.StoreableProductAbstract2IndividualAbstract.FromAbstract)
+                            .oid().as("baseOid")
+                            .evaluate();
+            while (eval.next()) {
+                final var productOid = id2oid.get(
+                                eval.<Long>get(CIProducts.StoreableProductAbstract2IndividualAbstract.ToAbstract));
+                final String baseOid = eval.get("baseOid");
+                if (productOid != null && baseOid != null && !ret.containsKey(productOid)) {
+                    ret.put(productOid, baseOid);
+                    BASEPRODUCTS.put(productOid, baseOid);
+                }
+            }
+            // without relation the product is used as it is
+            for (final var productOid : id2oid.values()) {
+                ret.putIfAbsent(productOid, productOid);
+            }
+        }
+        return ret;
+    }
+
+    public static void invalidate()
+    {
+        LOG.info("Invalidating product prices");
+        synchronized (PRICES) {
+            PRICES.clear();
+        }
+        TAXES.clear();
+    }
+
+    private static Map<String, ProductPrice> load(final List<String> productOids,
+                                                  final UUID priceList,
+                                                  final DateTime date)
+        throws EFapsException
+    {
+        final var baseProducts = resolveBaseProducts(productOids);
+        final Map<Long, Long> prodId2taxCatId = new HashMap<>();
+        final var ids = baseProducts.values().stream()
+                        .map(Instance::get)
+                        .map(Instance::getId)
+                        .distinct()
+                        .toArray();
+        final var prodEval = EQL.builder().print().query(CIProducts.ProductAbstract)
+                        .where()
+                        .attribute(CIProducts.ProductAbstract.ID).in(ids)
+                        .select()
+                        .attribute(CIProducts.ProductAbstract.TaxCategory)
+                        .evaluate();
+        while (prodEval.next()) {
+            prodId2taxCatId.put(prodEval.inst().getId(), prodEval.get(CIProducts.ProductAbstract.TaxCategory));
+        }
+        final Map<String, ProductPrice> ret = new HashMap<>();
+        for (final var productOid : productOids) {
+            final var prodInst = Instance.get(baseProducts.get(productOid));
+            final var prodPrice = new PriceUtil().getPrice(ParameterUtil.instance(), date, prodInst, priceList,
+                            "DefaultPosition", false);
+            ret.put(productOid, new ProductPrice(prodInst.getOid(), prodPrice.getCurrentPrice(),
+                            getTaxes(prodId2taxCatId.get(prodInst.getId()))));
+        }
+        return ret;
+    }
+
+    private static List<ITax> getTaxes(final Long taxCatId)
+        throws EFapsException
+    {
+        final var key = Context.getThreadContext().getCompany().getId() + "|" + taxCatId;
+        var ret = TAXES.get(key);
+        if (ret == null) {
+            final List<ITax> taxes = new ArrayList<>();
+            for (final var tax : TaxCat_Base.get(taxCatId).getTaxes()) {
+                taxes.add(new org.efaps.abacus.pojo.Tax()
+                                .setKey(tax.getName())
+                                .setPercentage(tax.getFactor().multiply(new BigDecimal("100")))
+                                .setAmount(tax.getAmount())
+                                .setType(EnumUtils.getEnum(TaxType.class, tax.getTaxType().name())));
+            }
+            ret = List.copyOf(taxes);
+            TAXES.put(key, ret);
+        }
+        return ret;
+    }
+
+    /**
+     * Price and taxes of a product.
+     */
+    public static final class ProductPrice
+    {
+
+        private final String productOid;
+        private final BigDecimal netUnitPrice;
+        private final List<ITax> taxes;
+        private final long loaded = System.currentTimeMillis();
+
+        private ProductPrice(final String productOid,
+                             final BigDecimal netUnitPrice,
+                             final List<ITax> taxes)
+        {
+            this.productOid = productOid;
+            this.netUnitPrice = netUnitPrice;
+            this.taxes = taxes;
+        }
+
+        /**
+         * @return oid of the product the price belongs to, differs from the
+         *         requested one for individual products
+         */
+        public String getProductOid()
+        {
+            return productOid;
+        }
+
+        public BigDecimal getNetUnitPrice()
+        {
+            return netUnitPrice;
+        }
+
+        public List<ITax> getTaxes()
+        {
+            return taxes;
+        }
+
+        private boolean isExpired()
+        {
+            return System.currentTimeMillis() - loaded > TimeUnit.MINUTES.toMillis(LIFESPAN);
+        }
+    }
+}
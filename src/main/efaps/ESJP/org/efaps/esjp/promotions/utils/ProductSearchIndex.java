@@ -0,0 +1,186 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.esjp.promotions.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.lang3.StringUtils;
+import org.efaps.admin.program.esjp.EFapsApplication;
+import org.efaps.admin.program.esjp.EFapsUUID;
+import org.efaps.db.Context;
+import org.efaps.eql.EQL;
+import org.efaps.esjp.ci.CIProducts;
+import org.efaps.util.EFapsException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In memory prefix index over name and description of the standard products
+ * of a company. Every product is indexed by its complete name, its complete
+ * description and every word of both, all in lower case, in one sorted array,
+ * so a search is a binary search followed by a scan over the matching range.
+ * The index is built on first use and rebuilt after {@link #LIFESPAN}
+ * minutes. The products belong to another application that does not notify
+ * about changes, so {@link #invalidate()} can be used to force a rebuild.
+ */
+@EFapsUUID("d7bccdf0-ca4a-4e7c-a36b-0220301008ee")
+@EFapsApplication("eFapsApp-Promotions")
+public final class ProductSearchIndex
+{
+
+    private static final Logger LOG = LoggerFactory.getLogger(ProductSearchIndex.class);
+
+    /** Minutes until the index is rebuilt. */
+    private static final long LIFESPAN = 15;
+
+    private static final Map<Long, ProductSearchIndex> INDEXES = new ConcurrentHashMap<>();
+
+    private final long built = System.currentTimeMillis();
+
+    private final AtomicBoolean rebuilding = new AtomicBoolean();
+
+    private final String[] oids;
+    private final String[] names;
+    private final String[] descriptions;
+
+    /** Sorted lower case keys. */
+    private final String[] keys;
+
+    /** Index of the product for the key at the same position. */
+    private final int[] products;
+
+    private ProductSearchIndex(final List<String[]> rows)
+    {
+        oids = new String[rows.size()];
+        names = new String[rows.size()];
+        descriptions = new String[rows.size()];
+        final List<Object[]> entries = new ArrayList<>();
+        for (int i = 0; i < rows.size(); i++) {
+            oids[i] = rows.get(i)[0];
+            names[i] = rows.get(i)[1];
+            descriptions[i] = rows.get(i)[2];
+            for (final var value : new String[] { names[i], descriptions[i] }) {
+                if (StringUtils.isNotBlank(value)) {
+                    final var lower = value.toLowerCase(Locale.ROOT);
+                    entries.add(new Object[] { lower, i });
+                    for (final var token : StringUtils.split(lower)) {
+                        if (!token.equals(lower)) {
+                            entries.add(new Object[] { token, i });
+                        }
+                    }
+                }
+            }
+        }
+        entries.sort((entry1, entry2) -> ((String) entry1[0]).compareTo((String) entry2[0]));
+        keys = new String[entries.size()];
+        products = new int[entries.size()];
+        for (int i = 0; i < entries.size(); i++) {
+            keys[i] = (String) entries.get(i)[0];
+            products[i] = (int) entries.get(i)[1];
+        }
+    }
+
+    /**
+     * @param term start of the name, the description or one of their words
+     * @param limit maximum number of products
+     * @return oid, name and description of the matching products
+     */
+    public List<String[]> search(final String term,
+                                 final int limit)
+    {
+        final var lowerTerm = StringUtils.lowerCase(term, Locale.ROOT);
+        final List<String[]> ret = new ArrayList<>();
+        if (lowerTerm != null) {
+            final var found = new BitSet(oids.length);
+            var idx = Arrays.binarySearch(keys, lowerTerm);
+            if (idx < 0) {
+                idx = -idx - 1;
+            }
+            for (; idx < keys.length && ret.size() < limit && keys[idx].startsWith(lowerTerm); idx++) {
+                final var product = products[idx];
+                if (!found.get(product)) {
+                    found.set(product);
+                    ret.add(new String[] { oids[product], names[product], descriptions[product] });
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return the index of the current company, built if necessary
+     * @throws EFapsException on error
+     */
+    public static ProductSearchIndex get()
+        throws EFapsException
+    {
+        final var companyId = Context.getThreadContext().getCompany().getId();
+        var ret = INDEXES.get(companyId);
+        if (ret == null) {
+            synchronized (INDEXES) {
+                ret = INDEXES.get(companyId);
+                if (ret == null) {
+                    ret = build();
+                    INDEXES.put(companyId, ret);
+                }
+            }
+        } else if (System.currentTimeMillis() - ret.built > TimeUnit.MINUTES.toMillis(LIFESPAN)
+                        && ret.rebuilding.compareAndSet(false, true)) {
+            // only one caller rebuilds, the others keep using the current index
+            final var stale = ret;
+            try {
+                ret = build();
+                // not stored if the index was invalidated meanwhile
+                INDEXES.replace(companyId, stale, ret);
+            } finally {
+                stale.rebuilding.set(false);
+            }
+        }
+        return ret;
+    }
+
+    public static void invalidate()
+    {
+        INDEXES.clear();
+    }
+
+    private static ProductSearchIndex build()
+        throws EFapsException
+    {
+        final var start = System.currentTimeMillis();
+        final List<String[]> rows = new ArrayList<>();
+        final var eval = EQL.builder().print().query(CIProducts.ProductStandart)
+                        .select()
+                        .attribute(CIProducts.ProductStandart.Name, CIProducts.ProductStandart.Description)
+                        .evaluate();
+        while (eval.next()) {
+            rows.add(new String[] { eval.inst().getOid(), eval.get(CIProducts.ProductStandart.Name),
+                            eval.get(CIProducts.ProductStandart.Description) });
+        }
+        final var ret = new ProductSearchIndex(rows);
+        LOG.info("Built product search index with {} products and {} keys in {} ms", rows.size(),
+                        ret.keys.length, System.currentTimeMillis() - start);
+        return ret;
+    }
+}
@@ -94,6 +94,34 @@ public class Promotions
                     .key(Promotions.BASE + "BINRegexCondition.Activate")
                     .description("Activate BINRegexConditions.");
 
+    @EFapsSysConfAttribute
+    public static final BooleanSysConfAttribute CACHE_JSON = new BooleanSysConfAttribute()
+                    .sysConfUUID(Promotions.SYSCONFUUID)
+                    .key(Promotions.BASE + "Cache.JSON")
+                    .description("Store the cached promotions as JSON instead of the binary format. "
+                                    + "Meant for debugging only.");
+
+    @EFapsSysConfAttribute
+    public static final BooleanSysConfAttribute CALCULATOR_INDEX = new BooleanSysConfAttribute()
+                    .sysConfUUID(Promotions.SYSCONFUUID)
+                    .key(Promotions.BASE + "Calculator.Index")
+                    .description("Hand only the promotions to the calculator that can possibly match the document "
+                                    + "(products, store and validity).");
+
+    @EFapsSysConfAttribute
+    public static final BooleanSysConfAttribute INFO_ASYNC = new BooleanSysConfAttribute()
+                    .sysConfUUID(Promotions.SYSCONFUUID)
+                    .key(Promotions.BASE + "PromotionInfo.Async")
+                    .description("Queue the promotion info of documents and register it with the "
+                                    + "PromotionInfoQueueJob instead of during the posting of the document.");
+
+    @EFapsSysConfAttribute
+    public static final BooleanSysConfAttribute PRODUCT_SEARCH_INDEX = new BooleanSysConfAttribute()
+                    .sysConfUUID(Promotions.SYSCONFUUID)
+                    .key(Promotions.BASE + "Simulator.ProductSearchIndex")
+                    .description("Search the products of the simulator in an in memory index of name, description "
+                                    + "and their words instead of the database.");
+
     public enum ConditionContainer implements IEnum
     {
 
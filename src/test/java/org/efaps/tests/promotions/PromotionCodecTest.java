@@ -0,0 +1,149 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.tests.promotions;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import org.efaps.esjp.common.serialization.SerializationUtil;
+import org.efaps.esjp.promotions.cache.PromotionCodec;
+import org.efaps.promotionengine.promotion.Promotion;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.annotations.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Checks that the binary encoding and the JSON encoding of the cached
+ * promotions decode to the same promotions and compares them in size and
+ * time.
+ */
+public class PromotionCodecTest
+{
+
+    private static final Logger LOG = LoggerFactory.getLogger(PromotionCodecTest.class);
+
+    private static final OffsetDateTime NOW = OffsetDateTime.of(2024, 6, 12, 12, 0, 0, 0, ZoneOffset.ofHours(-5));
+
+    private static final int RUNS = 5;
+
+    private final List<Promotion> promotions = new PromotionGenerator(42, 2_000, NOW).promotions(500);
+
+    @Test
+    public void roundTrip()
+        throws Exception
+    {
+        final var expected = normalize(SerializationUtil.getObjectMapper().valueToTree(promotions));
+        assertEquals(normalize(SerializationUtil.getObjectMapper().valueToTree(
+                        PromotionCodec.decode(PromotionCodec.encode(promotions, false)))), expected);
+        assertEquals(normalize(SerializationUtil.getObjectMapper().valueToTree(
+                        PromotionCodec.decode(PromotionCodec.encode(promotions, true)))), expected);
+    }
+
+    @Test
+    public void ignoresOtherPayloads()
+        throws Exception
+    {
+        final var payload = PromotionCodec.encode(promotions, false);
+        payload[3] = (byte) (PromotionCodec.FORMAT_VERSION + 1);
+        assertNull(PromotionCodec.decode(payload));
+        assertNull(PromotionCodec.decode("[]".getBytes()));
+    }
+
+    /**
+     * Promotions with tens of thousands of products per condition, as given
+     * by ProductsEQLConditions on a large catalogue.
+     */
+    @Test
+    public void compareSizeAndTime()
+        throws Exception
+    {
+        final var large = new PromotionGenerator(4711, 100_000, NOW).promotions(40, 50_000);
+        final var objectMapper = SerializationUtil.getObjectMapper();
+        long oids = 0;
+        for (final var promotion : large) {
+            for (final var condition : promotion.getSourceConditions()) {
+                oids += objectMapper.valueToTree(condition).path("products").size();
+            }
+            for (final var condition : promotion.getTargetConditions()) {
+                oids += objectMapper.valueToTree(condition).path("products").size();
+            }
+        }
+        final var json = objectMapper.writeValueAsBytes(large);
+        final var binary = PromotionCodec.encode(large, false);
+
+        // warm up before measuring
+        for (int i = 0; i < RUNS; i++) {
+            objectMapper.readValue(objectMapper.writeValueAsBytes(large), Promotion[].class);
+            PromotionCodec.decode(PromotionCodec.encode(large, false));
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < RUNS; i++) {
+            objectMapper.writeValueAsBytes(large);
+        }
+        final var jsonEncode = (System.nanoTime() - start) / RUNS / 1_000_000;
+        start = System.nanoTime();
+        for (int i = 0; i < RUNS; i++) {
+            objectMapper.readValue(json, Promotion[].class);
+        }
+        final var jsonDecode = (System.nanoTime() - start) / RUNS / 1_000_000;
+        start = System.nanoTime();
+        for (int i = 0; i < RUNS; i++) {
+            PromotionCodec.encode(large, false);
+        }
+        final var binaryEncode = (System.nanoTime() - start) / RUNS / 1_000_000;
+        start = System.nanoTime();
+        for (int i = 0; i < RUNS; i++) {
+            PromotionCodec.decode(binary);
+        }
+        final var binaryDecode = (System.nanoTime() - start) / RUNS / 1_000_000;
+
+        LOG.info("{} promotions with {} oids, JSON: {} bytes, encode {} ms, decode {} ms; "
+                        + "binary: {} bytes, encode {} ms, decode {} ms", large.size(), oids, json.length,
+                        jsonEncode, jsonDecode, binary.length, binaryEncode, binaryDecode);
+        assertTrue(binary.length < json.length / 4, "binary " + binary.length + " vs JSON " + json.length);
+    }
+
+    /**
+     * Sets of products are compared independent of their order, decoded
+     * products are sorted but the generated ones are not.
+     */
+    private static JsonNode normalize(final JsonNode node)
+    {
+        if (node instanceof final ArrayNode array) {
+            final var children = new ArrayList<JsonNode>();
+            array.forEach(child -> children.add(normalize(child)));
+            if (children.stream().allMatch(JsonNode::isTextual)) {
+                children.sort(Comparator.comparing(JsonNode::textValue));
+            }
+            array.removeAll();
+            array.addAll(children);
+        } else if (node instanceof final ObjectNode object) {
+            object.fieldNames().forEachRemaining(name -> object.set(name, normalize(object.get(name))));
+        }
+        return node;
+    }
+}
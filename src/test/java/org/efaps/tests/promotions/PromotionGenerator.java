@@ -0,0 +1,232 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.tests.promotions;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.OffsetDateTime;
+import java.time.OffsetTime;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.efaps.promotionengine.action.PercentageDiscountAction;
+import org.efaps.promotionengine.action.Strategy;
+import org.efaps.promotionengine.condition.DateCondition;
+import org.efaps.promotionengine.condition.EntryOperator;
+import org.efaps.promotionengine.condition.OrCondition;
+import org.efaps.promotionengine.condition.ProductFamilyCondition;
+import org.efaps.promotionengine.condition.ProductFamilyConditionEntry;
+import org.efaps.promotionengine.condition.ProductsCondition;
+import org.efaps.promotionengine.condition.StoreCondition;
+import org.efaps.promotionengine.condition.TimeCondition;
+import org.efaps.promotionengine.pojo.Document;
+import org.efaps.promotionengine.pojo.Position;
+import org.efaps.promotionengine.promotion.Promotion;
+
+/**
+ * Generates promotions and documents from a seed, so that the same seed
+ * always gives equal, but not identical objects.
+ */
+public class PromotionGenerator
+{
+
+    public static final String PRODUCT_TYPE = "4711";
+
+    public static final String INDIVIDUAL_TYPE = "4712";
+
+    public static final String FAMILY_TYPE = "4800";
+
+    public static final List<String> STORES = List.of("STORE-A", "STORE-B", "STORE-C");
+
+    private final Random random;
+
+    private final int products;
+
+    private final OffsetDateTime now;
+
+    public PromotionGenerator(final long seed,
+                              final int products,
+                              final OffsetDateTime now)
+    {
+        random = new Random(seed);
+        this.products = products;
+        this.now = now;
+    }
+
+    public List<Promotion> promotions(final int count)
+    {
+        return promotions(count, 20);
+    }
+
+    /**
+     * @param count number of promotions
+     * @param maxProducts maximum number of products per condition
+     * @return the generated promotions
+     */
+    public List<Promotion> promotions(final int count,
+                                      final int maxProducts)
+    {
+        final List<Promotion> ret = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            final var builder = Promotion.builder()
+                            .withOid("5000." + (i + 1))
+                            .withName("Promotion " + i)
+                            .withDescription("Generated promotion " + i)
+                            .withLabel("P" + i)
+                            .withPriority(random.nextInt(10))
+                            .withStartDateTime(now.minusDays(random.nextInt(30)).plusDays(random.nextInt(5)))
+                            .withEndDateTime(now.plusDays(random.nextInt(30)).minusDays(random.nextInt(5)));
+            final var source = products(1 + random.nextInt(maxProducts));
+            switch (random.nextInt(5)) {
+                case 0:
+                    builder.addSourceCondition(familyCondition(source, "family " + i));
+                    break;
+                case 1:
+                    final var orCondition = new OrCondition();
+                    orCondition.setNote("or " + i);
+                    orCondition.addCondition(productsCondition(source, EntryOperator.INCLUDES_ANY, "or-a " + i));
+                    orCondition.addCondition(productsCondition(products(1 + random.nextInt(maxProducts)),
+                                    EntryOperator.INCLUDES_ANY, "or-b " + i));
+                    builder.addSourceCondition(orCondition);
+                    break;
+                default:
+                    builder.addSourceCondition(productsCondition(source, random.nextBoolean()
+                                    ? EntryOperator.INCLUDES_ANY
+                                    : EntryOperator.INCLUDES_ALL, "source " + i));
+                    break;
+            }
+            if (random.nextInt(5) == 0) {
+                builder.addSourceCondition(productsCondition(products(1 + random.nextInt(5)),
+                                EntryOperator.EXCLUDES, "excluded " + i));
+            }
+            builder.addTargetCondition(new ProductsCondition()
+                            .setPositionQuantity(BigDecimal.ONE)
+                            .setEntryOperator(EntryOperator.INCLUDES_ANY)
+                            .setAllowTargetSameAsSource(true)
+                            .setProducts(random.nextBoolean() ? new LinkedHashSet<>(source)
+                                            : products(1 + random.nextInt(maxProducts)))
+                            .setNote("target " + i));
+            if (random.nextInt(3) == 0) {
+                final var storeCondition = new StoreCondition();
+                storeCondition.setEntryOperator(random.nextInt(4) == 0 ? EntryOperator.EXCLUDES
+                                : EntryOperator.INCLUDES_ANY).setNote("store " + i);
+                storeCondition.addIdentifier(STORES.get(random.nextInt(STORES.size())));
+                builder.addSourceCondition(storeCondition);
+            }
+            if (random.nextInt(4) == 0) {
+                final var today = now.toLocalDate();
+                final var dateCondition = new DateCondition();
+                dateCondition.setNote("date " + i);
+                dateCondition.addRange(today.minusDays(random.nextInt(3)), today.plusDays(random.nextInt(3)));
+                if (random.nextBoolean()) {
+                    dateCondition.addRange(LocalDate.of(2000, 1, 1), LocalDate.of(2000, 1, 2));
+                }
+                builder.addSourceCondition(dateCondition);
+            }
+            if (random.nextInt(4) == 0) {
+                final var timeCondition = new TimeCondition();
+                timeCondition.setNote("time " + i);
+                final var startHour = random.nextInt(12);
+                timeCondition.addRange(OffsetTime.of(LocalTime.of(startHour, 0), now.getOffset()),
+                                OffsetTime.of(LocalTime.of(startHour + 1 + random.nextInt(11), 0),
+                                                now.getOffset()));
+                builder.addSourceCondition(timeCondition);
+            }
+            builder.addAction(new PercentageDiscountAction()
+                            .setPercentage(BigDecimal.valueOf(5 + random.nextInt(20)))
+                            .setStrategy(Strategy.CHEAPEST));
+            ret.add(builder.build());
+        }
+        return ret;
+    }
+
+    public Document document(final int positions)
+    {
+        final var ret = new Document();
+        for (int i = 0; i < positions; i++) {
+            // individual or batch products are calculated for their product
+            // with the individual as stand-in
+            ret.addPosition(new Position()
+                            .setIndex(i + 1)
+                            .setProductOid(product())
+                            .setStandInOid(random.nextInt(4) == 0 ? individual() : null)
+                            .setQuantity(BigDecimal.valueOf(1 + random.nextInt(4)))
+                            .setNetUnitPrice(BigDecimal.valueOf(100 + random.nextInt(5000), 2))
+                            .setTaxes(List.of()));
+        }
+        return ret;
+    }
+
+    public String store()
+    {
+        return STORES.get(random.nextInt(STORES.size()));
+    }
+
+    private ProductsCondition productsCondition(final Set<String> products,
+                                                final EntryOperator entryOperator,
+                                                final String note)
+    {
+        return new ProductsCondition()
+                        .setPositionQuantity(BigDecimal.valueOf(1 + random.nextInt(3)))
+                        .setEntryOperator(entryOperator)
+                        .setAllowTargetSameAsSource(true)
+                        .setProducts(products)
+                        .setNote(note);
+    }
+
+    private ProductFamilyCondition familyCondition(final Set<String> products,
+                                                   final String note)
+    {
+        final var entries = new ArrayList<ProductFamilyConditionEntry>();
+        final var familyCount = 1 + random.nextInt(3);
+        for (int i = 0; i < familyCount; i++) {
+            entries.add(new ProductFamilyConditionEntry().setProductFamilyOid(FAMILY_TYPE + "." + (i + 1)));
+        }
+        int idx = 0;
+        for (final var product : products) {
+            entries.get(idx++ % familyCount).addProduct(product);
+        }
+        final var ret = new ProductFamilyCondition();
+        ret.setEntryOperator(random.nextBoolean() ? EntryOperator.INCLUDES_ANY : EntryOperator.INCLUDES_ALL)
+                        .setAllowTargetSameAsSource(true)
+                        .setEntries(entries)
+                        .setNote(note);
+        return ret;
+    }
+
+    private Set<String> products(final int count)
+    {
+        final Set<String> ret = new LinkedHashSet<>();
+        while (ret.size() < count) {
+            ret.add(random.nextInt(10) == 0 ? individual() : product());
+        }
+        return ret;
+    }
+
+    private String product()
+    {
+        return PRODUCT_TYPE + "." + (1 + random.nextInt(products));
+    }
+
+    private String individual()
+    {
+        return INDIVIDUAL_TYPE + "." + (1 + random.nextInt(products));
+    }
+}
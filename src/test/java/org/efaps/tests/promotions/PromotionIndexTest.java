@@ -0,0 +1,142 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.tests.promotions;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.efaps.abacus.api.IConfig;
+import org.efaps.esjp.common.serialization.SerializationUtil;
+import org.efaps.esjp.promotions.cache.PromotionIndex;
+import org.efaps.esjp.promotions.cache.PromotionWindow;
+import org.efaps.promotionengine.Calculator;
+import org.efaps.promotionengine.PromotionsConfiguration;
+import org.efaps.promotionengine.condition.StoreCondition;
+import org.efaps.promotionengine.pojo.Document;
+import org.efaps.promotionengine.process.EngineRule;
+import org.efaps.promotionengine.promotion.Promotion;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+/**
+ * Differential test for the {@link PromotionIndex}: calculating generated
+ * documents with the candidates of the index must give exactly the same
+ * result as calculating them with all promotions.
+ */
+public class PromotionIndexTest
+{
+
+    private static final int DOCUMENTS = 200;
+
+    private static final OffsetDateTime NOW = OffsetDateTime.of(2024, 6, 12, 12, 0, 0, 0, ZoneOffset.ofHours(-5));
+
+    @DataProvider(name = "seeds")
+    public Object[][] seeds()
+    {
+        return new Object[][] { { 1L }, { 7L }, { 42L }, { 4711L } };
+    }
+
+    @Test(dataProvider = "seeds")
+    public void sameResultAsWithoutIndex(final Long seed)
+        throws Exception
+    {
+        // two generators with the same seed give equal, but separate objects
+        final var fullGenerator = new PromotionGenerator(seed, 300, NOW);
+        final var indexGenerator = new PromotionGenerator(seed, 300, NOW);
+        final var allPromotions = fullGenerator.promotions(400);
+        final var indexedPromotions = indexGenerator.promotions(400);
+        final var index = new PromotionIndex(indexedPromotions, indexedPromotions.stream()
+                        .map(PromotionWindow::new)
+                        .toArray(PromotionWindow[]::new));
+
+        final var objectMapper = SerializationUtil.getObjectMapper();
+        int narrowed = 0;
+        for (int i = 0; i < DOCUMENTS; i++) {
+            final var store = fullGenerator.store();
+            indexGenerator.store();
+            final var positions = 1 + i % 12;
+            final var fullDoc = fullGenerator.document(positions);
+            final var indexDoc = indexGenerator.document(positions);
+            final var evaluation = NOW.plusHours(i % 48 - 24);
+
+            calculate(fullDoc, allPromotions, store, evaluation);
+            final var candidates = index.getCandidates(indexDoc, data(store), evaluation);
+            calculate(indexDoc, candidates, store, evaluation);
+            if (candidates.size() < allPromotions.size()) {
+                narrowed++;
+            }
+            assertEquals(objectMapper.valueToTree(indexDoc), objectMapper.valueToTree(fullDoc),
+                            "document " + i + " of seed " + seed);
+        }
+        // make sure the index was actually exercised
+        assertTrue(narrowed > 0);
+    }
+
+    private static void calculate(final Document document,
+                                  final List<Promotion> promotions,
+                                  final String store,
+                                  final OffsetDateTime evaluation)
+    {
+        final var promoConfig = new PromotionsConfiguration();
+        promoConfig.setEvaluationDateTime(evaluation);
+        promoConfig.setEngineRule(EngineRule.PRIORITY);
+        new Calculator(config()).calc(document, promotions, data(store), promoConfig);
+    }
+
+    private static Map<String, Object> data(final String store)
+    {
+        final Map<String, Object> ret = new HashMap<>();
+        ret.put(StoreCondition.KEY, store);
+        return ret;
+    }
+
+    /**
+     * The values of the configuration do not matter as long as both runs use
+     * the same, so the defaults of the interface are used and anything else
+     * gets a fixed value by its type.
+     */
+    private static IConfig config()
+    {
+        final InvocationHandler handler = (proxy, method, args) -> {
+            final Object ret;
+            final var type = method.getReturnType();
+            if (method.isDefault()) {
+                ret = InvocationHandler.invokeDefault(proxy, method, args);
+            } else if (type == int.class || type == Integer.class) {
+                ret = 2;
+            } else if (type == long.class || type == Long.class) {
+                ret = 2L;
+            } else if (type == boolean.class || type == Boolean.class) {
+                ret = false;
+            } else if (type.isEnum()) {
+                ret = type.getEnumConstants()[0];
+            } else {
+                ret = null;
+            }
+            return ret;
+        };
+        return (IConfig) Proxy.newProxyInstance(IConfig.class.getClassLoader(), new Class<?>[] { IConfig.class },
+                        handler);
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright © 2003 - 2024 The eFaps Team (-)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.efaps.tests.promotions;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.efaps.esjp.promotions.cache.SingleFlight;
+import org.efaps.util.EFapsException;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class SingleFlightTest
+{
+
+    private ExecutorService executor;
+
+    @BeforeMethod
+    public void setUp()
+    {
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @AfterMethod
+    public void tearDown()
+    {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void loadsOnceForConcurrentCallers()
+        throws Exception
+    {
+        final var flight = new SingleFlight<String>(10, TimeUnit.SECONDS);
+        final var slot = new FakeSlot();
+        final var loads = new AtomicInteger();
+        final var started = new CountDownLatch(1);
+        final var proceed = new CountDownLatch(1);
+        final SingleFlight.Loader<String> loader = owner -> {
+            loads.incrementAndGet();
+            started.countDown();
+            await(proceed);
+            return "loaded";
+        };
+        final var first = executor.submit(() -> flight.run(1L, null, slot, loader));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        final var entered = new CountDownLatch(8);
+        final List<Future<String>> waiters = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            waiters.add(executor.submit(() -> {
+                entered.countDown();
+                return flight.run(1L, null, slot, loader);
+            }));
+        }
+        assertTrue(entered.await(5, TimeUnit.SECONDS));
+        // give the waiters the time to join the running flight
+        Thread.sleep(200);
+        proceed.countDown();
+
+        assertEquals(first.get(5, TimeUnit.SECONDS), "loaded");
+        for (final var waiter : waiters) {
+            assertEquals(waiter.get(5, TimeUnit.SECONDS), "loaded");
+        }
+        assertEquals(loads.get(), 1);
+        assertEquals(slot.releases.get(), 1);
+        assertFalse(slot.held.get());
+        assertFalse(flight.isRunning(1L));
+    }
+
+    @Test
+    public void servesStaleWhileLoading()
+        throws Exception
+    {
+        final var flight = new SingleFlight<String>(10, TimeUnit.SECONDS);
+        final var slot = new FakeSlot();
+        final var started = new CountDownLatch(1);
+        final var proceed = new CountDownLatch(1);
+        final SingleFlight.Loader<String> loader = owner -> {
+            started.countDown();
+            await(proceed);
+            return "new";
+        };
+        final var loading = executor.submit(() -> flight.run(1L, "old", slot, loader));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        // answered right away, the load is still blocked
+        assertEquals(executor.submit(() -> flight.run(1L, "old", slot, loader)).get(1, TimeUnit.SECONDS), "old");
+        assertTrue(flight.isRunning(1L));
+
+        proceed.countDown();
+        assertEquals(loading.get(5, TimeUnit.SECONDS), "new");
+    }
+
+    @Test
+    public void keepsStaleIfAnotherNodeLoads()
+        throws Exception
+    {
+        final var flight = new SingleFlight<String>(10, TimeUnit.SECONDS);
+        final var slot = new FakeSlot();
+        slot.held.set(true);
+        final var loads = new AtomicInteger();
+        assertEquals(flight.run(1L, "old", slot, owner -> {
+            loads.incrementAndGet();
+            return "new";
+        }), "old");
+        assertEquals(loads.get(), 0);
+
+        // without anything to serve it loads, but leaves the slot to its owner
+        assertEquals(flight.run(1L, null, slot, owner -> owner ? "owner" : "local"), "local");
+        assertTrue(slot.held.get());
+        assertEquals(slot.releases.get(), 0);
+    }
+
+    @Test
+    public void releasesSlotOnFailure()
+        throws Exception
+    {
+        final var flight = new SingleFlight<String>(10, TimeUnit.SECONDS);
+        final var slot = new FakeSlot();
+        final var started = new CountDownLatch(1);
+        final var proceed = new CountDownLatch(1);
+        final SingleFlight.Loader<String> failing = owner -> {
+            started.countDown();
+            await(proceed);
+            throw new EFapsException(SingleFlightTest.class, "failing");
+        };
+        final var loading = executor.submit(() -> flight.run(1L, null, slot, failing));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        final var entered = new CountDownLatch(1);
+        final var waiter = executor.submit(() -> {
+            entered.countDown();
+            return flight.run(1L, null, slot, owner -> null);
+        });
+        assertTrue(entered.await(5, TimeUnit.SECONDS));
+        Thread.sleep(200);
+        proceed.countDown();
+
+        try {
+            loading.get(5, TimeUnit.SECONDS);
+            fail("failure expected");
+        } catch (final ExecutionException e) {
+            assertTrue(e.getCause() instanceof EFapsException);
+        }
+        assertNull(waiter.get(5, TimeUnit.SECONDS));
+        assertFalse(slot.held.get());
+        assertEquals(slot.releases.get(), 1);
+        assertFalse(flight.isRunning(1L));
+
+        // with a stale value the failure is swallowed and the next load works
+        assertEquals(flight.run(1L, "old", slot, owner -> {
+            throw new EFapsException(SingleFlightTest.class, "failing");
+        }), "old");
+        assertFalse(slot.held.get());
+        assertEquals(flight.run(1L, null, slot, owner -> "loaded"), "loaded");
+    }
+
+    @Test
+    public void stopsWaitingAfterTimeout()
+        throws Exception
+    {
+        final var flight = new SingleFlight<String>(100, TimeUnit.MILLISECONDS);
+        final var slot = new FakeSlot();
+        final var started = new CountDownLatch(1);
+        final var proceed = new CountDownLatch(1);
+        final SingleFlight.Loader<String> loader = owner -> {
+            started.countDown();
+            await(proceed);
+            return "loaded";
+        };
+        final var loading = executor.submit(() -> flight.run(1L, null, slot, loader));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        final var start = System.nanoTime();
+        assertNull(executor.submit(() -> flight.run(1L, null, slot, loader)).get(5, TimeUnit.SECONDS));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 100);
+
+        proceed.countDown();
+        assertEquals(loading.get(5, TimeUnit.SECONDS), "loaded");
+        assertFalse(slot.held.get());
+        assertFalse(flight.isRunning(1L));
+    }
+
+    @Test
+    public void separatesKeys()
+        throws Exception
+    {
+        final var flight = new SingleFlight<String>(10, TimeUnit.SECONDS);
+        final var started = new CountDownLatch(1);
+        final var proceed = new CountDownLatch(1);
+        final var loading = executor.submit(() -> flight.run(1L, null, new FakeSlot(), owner -> {
+            started.countDown();
+            await(proceed);
+            return "one";
+        }));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertEquals(flight.run(2L, null, new FakeSlot(), owner -> "two"), "two");
+        proceed.countDown();
+        assertEquals(loading.get(5, TimeUnit.SECONDS), "one");
+    }
+
+    private static void await(final CountDownLatch latch)
+    {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class FakeSlot
+        implements SingleFlight.Slot
+    {
+
+        private final AtomicBoolean held = new AtomicBoolean();
+
+        private final AtomicInteger releases = new AtomicInteger();
+
+        @Override
+        public boolean acquire()
+        {
+            return held.compareAndSet(false, true);
+        }
+
+        @Override
+        public void release()
+        {
+            releases.incrementAndGet();
+            held.set(false);
+        }
+    }
+}